@@ -0,0 +1,93 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.util.Units;
+import dr.math.MersenneTwisterFast;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Times the treelet engine against the event-driven engine on the same randomly grown transmission tree: each new
+ * host is infected by an earlier host chosen at random, within three years of that host's own infection, and each
+ * host is sampled (up to three times at once) with the given probability.
+ *
+ * Usage: EngineBenchmark [hosts sampling-probability N0 repeats]
+ */
+
+public class EngineBenchmark {
+
+    public static void main(String[] args){
+        int hostCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double samplingProbability = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+        double startNe = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+        int repeats = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        ConstantPopulation demographic = new ConstantPopulation(Units.Type.YEARS);
+        demographic.setN0(startNe);
+
+        TransmissionGraph graph = makeGraph(hostCount, samplingProbability);
+
+        // warm both up before timing
+        run(graph, demographic, false);
+        run(graph, demographic, true);
+
+        for(int i=0; i<repeats; i++){
+            for(boolean eventDriven : new boolean[]{false, true}){
+                long start = System.nanoTime();
+                int tips = run(graph, demographic, eventDriven);
+                long time = System.nanoTime() - start;
+
+                System.out.println((eventDriven ? "Event-driven: " : "Treelet:      ") + tips + " tips in " +
+                        (time/1E6) + " ms");
+            }
+        }
+    }
+
+    private static TransmissionGraph makeGraph(int hostCount, double samplingProbability){
+        MersenneTwisterFast random = new MersenneTwisterFast(1);
+        TransmissionGraph graph = new TransmissionGraph();
+
+        String[] ids = new String[hostCount];
+        double[] infectionTimes = new double[hostCount];
+
+        ids[0] = "host_0";
+        graph.addIntroduction(ids[0], 0);
+
+        for(int i=1; i<hostCount; i++){
+            int infector = random.nextInt(i);
+            ids[i] = "host_" + i;
+            infectionTimes[i] = infectionTimes[infector] + 3*random.nextDouble();
+            graph.addInfection(ids[infector], ids[i], infectionTimes[i]);
+        }
+
+        for(int i=0; i<hostCount; i++){
+            if(random.nextDouble() < samplingProbability){
+                graph.addSampling(ids[i], infectionTimes[i] + 1 + 5*random.nextDouble(), 1 + random.nextInt(3));
+            }
+        }
+
+        return graph;
+    }
+
+    private static int run(TransmissionGraph graph, ConstantPopulation demographic, boolean eventDriven){
+        VirusTreeSimulator simulator = new VirusTreeSimulator(demographic);
+        simulator.setMasterSeed(1);
+        simulator.setEventDriven(eventDriven);
+        simulator.setProgressStream(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        List<FlexibleTree> trees = simulator.simulate(graph);
+
+        int tips = 0;
+        for(FlexibleTree tree : trees){
+            tips += tree.getExternalNodeCount();
+        }
+        return tips;
+    }
+
+}
@@ -0,0 +1,80 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.util.Units;
+import dr.math.MersenneTwisterFast;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Times the simulation of a super-spreader: one introduced host with thousands of onward infections, each infectee
+ * sampled once. Grafting the infectees' subtrees onto the spreader's treelet is linear in its tips, so the time per
+ * infection should stay roughly level as the number of infections doubles.
+ *
+ * Usage: GraftingBenchmark [smallest-infection-count doublings N0]
+ */
+
+public class GraftingBenchmark {
+
+    public static void main(String[] args){
+        int smallest = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int doublings = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        double startNe = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+
+        ConstantPopulation demographic = new ConstantPopulation(Units.Type.YEARS);
+        demographic.setN0(startNe);
+
+        // warm up before timing
+        run(demographic, smallest);
+
+        for(int infections = smallest, i = 0; i <= doublings; infections *= 2, i++){
+            for(boolean detailed : new boolean[]{true, false}){
+                long start = System.nanoTime();
+                int tips = run(demographic, infections, detailed);
+                long time = System.nanoTime() - start;
+
+                System.out.println(infections + " infections, " + (detailed ? "detailed" : "simple") + ": " +
+                        tips + " tips in " + (time/1E6) + " ms, " + (time/1E3/infections) + " us per infection");
+            }
+        }
+    }
+
+    private static void run(ConstantPopulation demographic, int infections){
+        run(demographic, infections, true);
+        run(demographic, infections, false);
+    }
+
+    private static int run(ConstantPopulation demographic, int infections, boolean detailed){
+        TransmissionGraph graph = new TransmissionGraph();
+        MersenneTwisterFast random = new MersenneTwisterFast(1);
+
+        graph.addIntroduction("spreader", 0);
+        graph.addSampling("spreader", 10, 1);
+        for(int i=0; i<infections; i++){
+            String id = "infectee_" + i;
+            double time = 10*random.nextDouble();
+            graph.addInfection("spreader", id, time);
+            graph.addSampling(id, time + random.nextDouble(), 1);
+        }
+
+        VirusTreeSimulator simulator = new VirusTreeSimulator(demographic);
+        simulator.setMasterSeed(1);
+        simulator.setDetailedTrees(detailed);
+        simulator.setProgressStream(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        List<FlexibleTree> trees = simulator.simulate(graph);
+
+        int tips = 0;
+        for(FlexibleTree tree : trees){
+            tips += tree.getExternalNodeCount();
+        }
+        return tips;
+    }
+
+}
@@ -0,0 +1,115 @@
+package virustreesimulator;
+
+import dr.app.tools.NexusExporter;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.SimpleNode;
+import dr.evolution.tree.SimpleTree;
+import dr.evolution.util.Taxon;
+import dr.math.MersenneTwisterFast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times writing one large random tree as Nexus with BEAST's NexusExporter against NexusTreeWriter, with full
+ * labels, a TRANSLATE block and a separate label table, at full precision and at the given number of significant
+ * digits, and with the label table on every available thread. The tips have labels like those of sampled hosts,
+ * and the branch lengths are random.
+ *
+ * Usage: NexusBenchmark [tips precision repeats]
+ */
+
+public class NexusBenchmark {
+
+    public static void main(String[] args){
+        int tipCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int precision = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        int repeats = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        FlexibleTree tree = makeTree(tipCount);
+        int threads = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        for(int i=0; i<=repeats; i++){
+            // the first round is a warm-up
+            boolean report = i > 0;
+
+            long start = System.nanoTime();
+            byte[] bytes = exportWithBeast(tree);
+            report("NexusExporter", bytes, System.nanoTime() - start, report);
+
+            start = System.nanoTime();
+            bytes = NexusTreeWriter.toBytes(tree, NexusLabels.FULL, 0, null);
+            report("Full labels, exact", bytes, System.nanoTime() - start, report);
+
+            start = System.nanoTime();
+            bytes = NexusTreeWriter.toBytes(tree, NexusLabels.FULL, precision, null);
+            report("Full labels, " + precision + " digits", bytes, System.nanoTime() - start, report);
+
+            start = System.nanoTime();
+            bytes = NexusTreeWriter.toBytes(tree, NexusLabels.TRANSLATE, precision, null);
+            report("Translate, " + precision + " digits", bytes, System.nanoTime() - start, report);
+
+            start = System.nanoTime();
+            bytes = NexusTreeWriter.toBytes(tree, NexusLabels.TABLE, precision, null);
+            report("Table, " + precision + " digits", bytes, System.nanoTime() - start, report);
+
+            start = System.nanoTime();
+            bytes = NexusTreeWriter.toBytes(tree, NexusLabels.TABLE, precision, null, pool);
+            report("Table, " + precision + " digits, " + threads + " threads", bytes, System.nanoTime() - start,
+                    report);
+        }
+
+        pool.shutdown();
+    }
+
+    // a random binary tree, joining random pairs of lineages at increasing heights
+
+    private static FlexibleTree makeTree(int tipCount){
+        MersenneTwisterFast random = new MersenneTwisterFast(1);
+
+        SimpleNode[] lineages = new SimpleNode[tipCount];
+        for(int i=0; i<tipCount; i++){
+            SimpleNode tip = new SimpleNode();
+            tip.setTaxon(new Taxon("ID_" + i + "_sampled_1_" + (100 - 10*random.nextDouble())));
+            tip.setHeight(random.nextDouble());
+            lineages[i] = tip;
+        }
+
+        double height = 1;
+        for(int count = tipCount; count > 1; count--){
+            int first = random.nextInt(count);
+            int second = random.nextInt(count-1);
+            if(second >= first){
+                second++;
+            }
+            height += random.nextDouble()/count;
+
+            SimpleNode parent = new SimpleNode();
+            parent.setHeight(height);
+            parent.addChild(lineages[first]);
+            parent.addChild(lineages[second]);
+
+            lineages[first] = parent;
+            lineages[second] = lineages[count-1];
+        }
+
+        return new FlexibleTree(new SimpleTree(lineages[0]));
+    }
+
+    private static byte[] exportWithBeast(FlexibleTree tree){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream stream = new PrintStream(bytes);
+        new NexusExporter(stream).exportTree(tree);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private static void report(String name, byte[] bytes, long time, boolean report){
+        if(report){
+            System.out.println(name + ": " + (time/1E6) + " ms, " + (bytes.length/1E6) + " MB");
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.util.Units;
+import dr.evomodel.epidemiology.LogisticGrowthN0;
+import dr.math.MathUtils;
+
+/**
+ * Times the demographic work done per coalescent event (one intensity and one inverse intensity evaluation, as in
+ * a waiting time draw) for a logistic growth function, exactly and through a TabulatedDemographic.
+ *
+ * Usage: TabulatedDemographicBenchmark [N0 growthRate t50 span intervals events]
+ */
+
+public class TabulatedDemographicBenchmark {
+
+    public static void main(String[] args){
+        double startNe = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+        double growthRate = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        double t50 = args.length > 2 ? Double.parseDouble(args[2]) : -5;
+        double span = args.length > 3 ? Double.parseDouble(args[3]) : 40;
+        int intervals = args.length > 4 ? Integer.parseInt(args[4]) : 4096;
+        int events = args.length > 5 ? Integer.parseInt(args[5]) : 1000000;
+
+        LogisticGrowthN0 exact = new LogisticGrowthN0(Units.Type.YEARS);
+        exact.setN0(startNe);
+        exact.setGrowthRate(growthRate);
+        exact.setT50(t50);
+
+        long buildStart = System.nanoTime();
+        TabulatedDemographic tabulated = new TabulatedDemographic(exact, -span, 0, intervals, 1E-8);
+        long buildTime = System.nanoTime() - buildStart;
+
+        System.out.println("Table: " + tabulated.getIntervalCount() + " intervals, largest scaled error found "
+                + tabulated.getLargestErrorFound() + ", built in " + (buildTime/1E6) + " ms");
+
+        MathUtils.setSeed(1);
+        double[] times = new double[events];
+        double[] waits = new double[events];
+        for(int i=0; i<events; i++){
+            times[i] = -span*MathUtils.nextDouble();
+            int lineages = 2 + MathUtils.nextInt(20);
+            waits[i] = -Math.log(MathUtils.nextDouble())/(lineages*(lineages-1)/2.0);
+        }
+
+        // warm both up before timing
+
+        run(exact, times, waits);
+        run(tabulated, times, waits);
+
+        long exactStart = System.nanoTime();
+        double exactChecksum = run(exact, times, waits);
+        long exactTime = System.nanoTime() - exactStart;
+
+        long tabulatedStart = System.nanoTime();
+        double tabulatedChecksum = run(tabulated, times, waits);
+        long tabulatedTime = System.nanoTime() - tabulatedStart;
+
+        System.out.println("Exact:     " + ((double)exactTime/events) + " ns per coalescent event");
+        System.out.println("Tabulated: " + ((double)tabulatedTime/events) + " ns per coalescent event");
+        System.out.println("Speed-up:  " + ((double)exactTime/tabulatedTime));
+        System.out.println("Mean difference in coalescence time: "
+                + Math.abs(exactChecksum - tabulatedChecksum)/events);
+    }
+
+    private static double run(DemographicFunction demogFunct, double[] times, double[] waits){
+        double checksum = 0;
+        for(int i=0; i<times.length; i++){
+            double intensity = demogFunct.getIntensity(times[i]);
+            checksum += demogFunct.getInverseIntensity(intensity + waits[i]);
+        }
+        return checksum;
+    }
+
+}
@@ -0,0 +1,160 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.util.Taxon;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps a tree written by BinaryTreeWriter (see there for the layout). The node arrays are read straight from
+ * the mapping on each call; only the offsets of the tip label and host strings are held on the heap. Files over 2GB
+ * are not supported.
+ */
+
+public class BinaryTreeReader {
+
+    private ByteBuffer data;
+
+    private int nodeCount;
+    private int tipCount;
+    private int hostCount;
+
+    private int parentOffset;
+    private int branchLengthOffset;
+    private int heightOffset;
+    private int tipLabelOffset;
+    private int hostOffset;
+
+    private int[] tipLabelOffsets;
+    private int[] hostOffsets;
+
+    public BinaryTreeReader(String fileName) throws IOException{
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            data = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            file.close();
+        }
+
+        for(int i=0; i<BinaryTreeWriter.MAGIC.length; i++){
+            if(data.get(i)!=BinaryTreeWriter.MAGIC[i]){
+                throw new IOException(fileName + " is not a binary tree file");
+            }
+        }
+        int version = data.getInt(4);
+        if(version!=BinaryTreeWriter.VERSION){
+            throw new IOException("Unsupported binary tree file version " + version + " in " + fileName);
+        }
+
+        nodeCount = data.getInt(8);
+        tipCount = data.getInt(12);
+        hostCount = data.getInt(16);
+
+        parentOffset = 20;
+        branchLengthOffset = parentOffset + 4*nodeCount;
+        heightOffset = branchLengthOffset + 8*nodeCount;
+        tipLabelOffset = heightOffset + 8*nodeCount;
+        hostOffset = tipLabelOffset + 4*nodeCount;
+
+        tipLabelOffsets = new int[tipCount];
+        hostOffsets = new int[hostCount];
+
+        int position = hostOffset + 4*nodeCount;
+        for(int i=0; i<tipCount; i++){
+            tipLabelOffsets[i] = position;
+            position += 4 + data.getInt(position);
+        }
+        for(int i=0; i<hostCount; i++){
+            hostOffsets[i] = position;
+            position += 4 + data.getInt(position);
+        }
+    }
+
+    public int getNodeCount(){
+        return nodeCount;
+    }
+
+    public int getTipCount(){
+        return tipCount;
+    }
+
+    public int getHostCount(){
+        return hostCount;
+    }
+
+    public int getParent(int node){
+        return data.getInt(parentOffset + 4*node);
+    }
+
+    public double getBranchLength(int node){
+        return data.getDouble(branchLengthOffset + 8*node);
+    }
+
+    public double getHeight(int node){
+        return data.getDouble(heightOffset + 8*node);
+    }
+
+    public boolean isTip(int node){
+        return getTipLabelIndex(node)!=-1;
+    }
+
+    public int getTipLabelIndex(int node){
+        return data.getInt(tipLabelOffset + 4*node);
+    }
+
+    public int getHostIndex(int node){
+        return data.getInt(hostOffset + 4*node);
+    }
+
+    public String getTipLabel(int node){
+        int label = getTipLabelIndex(node);
+        return label==-1 ? null : readString(tipLabelOffsets[label]);
+    }
+
+    public String getHost(int node){
+        int host = getHostIndex(node);
+        return host==-1 ? null : readString(hostOffsets[host]);
+    }
+
+    // rebuilds a BEAST tree, for tools that want one; the accessors above avoid this cost
+
+    public FlexibleTree readTree(){
+        FlexibleNode[] nodes = new FlexibleNode[nodeCount];
+        for(int i=0; i<nodeCount; i++){
+            nodes[i] = new FlexibleNode();
+            nodes[i].setHeight(getHeight(i));
+            nodes[i].setLength(getBranchLength(i));
+            String label = getTipLabel(i);
+            if(label!=null){
+                nodes[i].setTaxon(new Taxon(label));
+            }
+            String host = getHost(i);
+            if(host!=null){
+                nodes[i].setAttribute("Unit", host);
+            }
+            int parent = getParent(i);
+            if(parent!=-1){
+                nodes[parent].addChild(nodes[i]);
+            }
+        }
+        return new FlexibleTree(nodes[0], true, true);
+    }
+
+    private String readString(int offset){
+        int length = data.getInt(offset);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.position(offset + 4);
+        view.get(bytes);
+        return new String(bytes, BinaryTreeWriter.UTF8);
+    }
+
+}
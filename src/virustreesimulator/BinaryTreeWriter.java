@@ -0,0 +1,191 @@
+package virustreesimulator;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Writes a tree in the compact binary format read by BinaryTreeReader. All numbers are little-endian.
+ *
+ *   magic              4 bytes, "VTSB"
+ *   version            int32, currently 1
+ *   nodeCount          int32, N
+ *   tipCount           int32, T
+ *   hostCount          int32, H
+ *   parent             int32[N], index of each node's parent, -1 for the root (node 0)
+ *   branchLength       float64[N], 0 for the root
+ *   height             float64[N]
+ *   tipLabel           int32[N], index into the tip label table, -1 for internal nodes
+ *   host               int32[N], index into the host table, -1 if the node has no "Unit" attribute
+ *   tip label table    T entries, each an int32 byte length followed by that many bytes of UTF-8
+ *   host table         H entries, encoded as for the tip label table
+ *
+ * Nodes are numbered in pre-order, so every parent has a smaller index than its children.
+ */
+
+public class BinaryTreeWriter {
+
+    public static final byte[] MAGIC = {'V', 'T', 'S', 'B'};
+    public static final int VERSION = 1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private WritableByteChannel channel;
+    private ByteBuffer buffer;
+
+    private BinaryTreeWriter(WritableByteChannel channel){
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static void writeTree(Tree tree, String fileName) throws IOException{
+        FileOutputStream stream = new FileOutputStream(fileName);
+        try {
+            new BinaryTreeWriter(stream.getChannel()).write(tree);
+        } finally {
+            stream.close();
+        }
+    }
+
+    // the file contents, for writing later
+
+    public static byte[] toBytes(Tree tree) throws IOException{
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        new BinaryTreeWriter(Channels.newChannel(stream)).write(tree);
+        return stream.toByteArray();
+    }
+
+    private void write(Tree tree) throws IOException{
+        int nodeCount = tree.getNodeCount();
+
+        NodeRef[] preOrder = new NodeRef[nodeCount];
+        HashMap<NodeRef, Integer> index = new HashMap<NodeRef, Integer>(2*nodeCount);
+
+        // explicit stack, as long transmission chains make for very deep trees
+
+        ArrayDeque<NodeRef> stack = new ArrayDeque<NodeRef>();
+        stack.push(tree.getRoot());
+        int next = 0;
+        while(!stack.isEmpty()){
+            NodeRef node = stack.pop();
+            index.put(node, next);
+            preOrder[next] = node;
+            next++;
+            for(int i=tree.getChildCount(node)-1; i>=0; i--){
+                stack.push(tree.getChild(node, i));
+            }
+        }
+
+        ArrayList<String> tipLabels = new ArrayList<String>();
+        ArrayList<String> hosts = new ArrayList<String>();
+        HashMap<String, Integer> hostIndex = new HashMap<String, Integer>();
+
+        int[] tipLabel = new int[nodeCount];
+        int[] host = new int[nodeCount];
+
+        for(int i=0; i<nodeCount; i++){
+            NodeRef node = preOrder[i];
+
+            Taxon taxon = tree.getNodeTaxon(node);
+            if(tree.isExternal(node) && taxon!=null){
+                tipLabel[i] = tipLabels.size();
+                tipLabels.add(taxon.getId());
+            } else {
+                tipLabel[i] = -1;
+            }
+
+            Object unit = tree.getNodeAttribute(node, "Unit");
+            if(unit!=null){
+                Integer existing = hostIndex.get(unit.toString());
+                if(existing==null){
+                    existing = hosts.size();
+                    hosts.add(unit.toString());
+                    hostIndex.put(unit.toString(), existing);
+                }
+                host[i] = existing;
+            } else {
+                host[i] = -1;
+            }
+        }
+
+        ensureSpace(24);
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(nodeCount);
+        buffer.putInt(tipLabels.size());
+        buffer.putInt(hosts.size());
+
+        for(int i=0; i<nodeCount; i++){
+            ensureSpace(4);
+            NodeRef parent = tree.getParent(preOrder[i]);
+            buffer.putInt(parent==null ? -1 : index.get(parent));
+        }
+        for(int i=0; i<nodeCount; i++){
+            ensureSpace(8);
+            buffer.putDouble(tree.isRoot(preOrder[i]) ? 0 : tree.getBranchLength(preOrder[i]));
+        }
+        for(int i=0; i<nodeCount; i++){
+            ensureSpace(8);
+            buffer.putDouble(tree.getNodeHeight(preOrder[i]));
+        }
+        for(int i=0; i<nodeCount; i++){
+            ensureSpace(4);
+            buffer.putInt(tipLabel[i]);
+        }
+        for(int i=0; i<nodeCount; i++){
+            ensureSpace(4);
+            buffer.putInt(host[i]);
+        }
+
+        writeStrings(tipLabels);
+        writeStrings(hosts);
+
+        flush();
+    }
+
+    private void writeStrings(ArrayList<String> strings) throws IOException{
+        for(String string : strings){
+            byte[] bytes = string.getBytes(UTF8);
+            ensureSpace(4);
+            buffer.putInt(bytes.length);
+            int offset = 0;
+            while(offset < bytes.length){
+                if(!buffer.hasRemaining()){
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+    }
+
+    private void ensureSpace(int bytes) throws IOException{
+        if(buffer.remaining() < bytes){
+            flush();
+        }
+    }
+
+    private void flush() throws IOException{
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+}
@@ -0,0 +1,229 @@
+package virustreesimulator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * A growable byte array that text is appended to as UTF-8, for putting files together without a String per piece.
+ * Integers, and doubles rounded to a given number of significant digits, are written digit by digit straight into
+ * the array.
+ */
+
+public class ByteBuilder {
+
+    // exact powers of ten; a double multiplied or divided by one of these is correctly rounded
+    private static final double[] POWERS_OF_TEN = {1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10, 1E11,
+            1E12, 1E13, 1E14, 1E15, 1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22};
+
+    private static final long[] LONG_POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L, 1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+            100000000000000L, 1000000000000000L, 10000000000000000L, 100000000000000000L};
+
+    // the most significant digits a double can be given
+    public static final int MAX_PRECISION = 17;
+
+    // beyond this many digits the mantissa is not exact as a double, so BigDecimal does the rounding
+    private static final int FAST_PRECISION = 15;
+
+    private byte[] bytes;
+    private int length;
+
+    public ByteBuilder(int capacity){
+        bytes = new byte[Math.max(capacity, 16)];
+    }
+
+    public int length(){
+        return length;
+    }
+
+    public void setLength(int length){
+        this.length = length;
+    }
+
+    public byte[] toByteArray(){
+        byte[] out = new byte[length];
+        System.arraycopy(bytes, 0, out, 0, length);
+        return out;
+    }
+
+    public ByteBuilder append(char c){
+        if(c < 0x80){
+            ensureSpace(1);
+            bytes[length++] = (byte)c;
+            return this;
+        }
+        return append(String.valueOf(c));
+    }
+
+    public ByteBuilder append(String string){
+        int count = string.length();
+        ensureSpace(count);
+        for(int i=0; i<count; i++){
+            char c = string.charAt(i);
+            if(c >= 0x80){
+                // the rest is not ASCII; rare enough to encode the slow way
+                byte[] rest = string.substring(i).getBytes(BinaryTreeWriter.UTF8);
+                ensureSpace(rest.length);
+                System.arraycopy(rest, 0, bytes, length, rest.length);
+                length += rest.length;
+                return this;
+            }
+            bytes[length++] = (byte)c;
+        }
+        return this;
+    }
+
+    public ByteBuilder append(ByteBuilder other){
+        ensureSpace(other.length);
+        System.arraycopy(other.bytes, 0, bytes, length, other.length);
+        length += other.length;
+        return this;
+    }
+
+    public ByteBuilder append(long value){
+        if(value < 0){
+            if(value==Long.MIN_VALUE){
+                return append(Long.toString(value));
+            }
+            append('-');
+            value = -value;
+        }
+
+        ensureSpace(19);
+        int digits = 1;
+        while(digits < 19 && value >= LONG_POWERS_OF_TEN[digits]){
+            digits++;
+        }
+        int end = length + digits;
+        for(int i=end-1; i>=length; i--){
+            bytes[i] = (byte)('0' + value%10);
+            value /= 10;
+        }
+        length = end;
+        return this;
+    }
+
+    /**
+     * The value rounded half up to this many significant digits (from 1 to MAX_PRECISION), as
+     * new BigDecimal(value).round(new MathContext(precision)) would, without trailing zeros after the point. Whether
+     * the form is plain depends on the rounded value, so 9.9999E-6 at three digits is 0.00001: rounded magnitudes
+     * from 1E-5 up to, but not including, 1E15 are written in plain decimal form, and others as BigDecimal.toString
+     * writes them (0.0000012, 1.234E-7, 1E+16). A precision of zero gives Double.toString's shortest exact form
+     * instead.
+     */
+
+    public ByteBuilder append(double value, int precision){
+        if(precision==0 || Double.isNaN(value) || Double.isInfinite(value)){
+            return append(Double.toString(value));
+        }
+        if(precision < 0 || precision > MAX_PRECISION){
+            throw new IllegalArgumentException("Precision must be between 0 and " + MAX_PRECISION);
+        }
+
+        if(value==0){
+            return append('0');
+        }
+        if(value < 0){
+            append('-');
+            value = -value;
+        }
+
+        // log10 can be one out, so values a little outside the plain range are left to the checks below
+        int exponent = (int)Math.floor(Math.log10(value));
+        if(exponent < -6 || exponent > 15 || precision > FAST_PRECISION){
+            return appendRounded(value, precision);
+        }
+
+        long mantissa = scale(value, precision - 1 - exponent);
+        // log10 can be one out near a power of ten, and rounding can carry into a new digit
+        if(mantissa >= LONG_POWERS_OF_TEN[precision]){
+            exponent++;
+            mantissa = scale(value, precision - 1 - exponent);
+        } else if(mantissa >= 0 && mantissa < LONG_POWERS_OF_TEN[precision-1]){
+            exponent--;
+            mantissa = scale(value, precision - 1 - exponent);
+        }
+        if(mantissa < 0){
+            return appendRounded(value, precision);
+        }
+        if(mantissa >= LONG_POWERS_OF_TEN[precision]){
+            // 9.99... rounded up to the next power of ten
+            exponent++;
+            mantissa /= 10;
+        }
+        // the exponent is now that of the rounded value
+        if(exponent < -5 || exponent >= 15){
+            return appendRounded(value, precision);
+        }
+
+        // the digits after the point, and the significant digits in the mantissa
+        int fractionDigits = precision - 1 - exponent;
+        int digits = precision;
+
+        // trailing zeros after the point are dropped
+        while(fractionDigits > 0 && mantissa%10==0){
+            mantissa /= 10;
+            fractionDigits--;
+            digits--;
+        }
+
+        if(fractionDigits <= 0){
+            append(mantissa);
+            for(int i=0; i<-fractionDigits; i++){
+                append('0');
+            }
+            return this;
+        }
+
+        if(fractionDigits >= digits){
+            append('0');
+            append('.');
+            for(int i=digits; i<fractionDigits; i++){
+                append('0');
+            }
+            return append(mantissa);
+        }
+
+        long whole = mantissa/LONG_POWERS_OF_TEN[fractionDigits];
+        long fraction = mantissa%LONG_POWERS_OF_TEN[fractionDigits];
+
+        append(whole);
+        append('.');
+        ensureSpace(fractionDigits);
+        for(int i=length+fractionDigits-1; i>=length; i--){
+            bytes[i] = (byte)('0' + fraction%10);
+            fraction /= 10;
+        }
+        length += fractionDigits;
+        return this;
+    }
+
+    // value*10^power rounded to the nearest integer, or -1 if the scaled value is too close to a half for the error
+    // in scaling it to be ruled out
+
+    private static long scale(double value, int power){
+        double scaled = power >= 0 ? value*POWERS_OF_TEN[power] : value/POWERS_OF_TEN[-power];
+        double fraction = scaled - Math.floor(scaled);
+        if(Math.abs(fraction - 0.5) <= 2*Math.ulp(scaled)){
+            return -1;
+        }
+        return Math.round(scaled);
+    }
+
+    // the slow, exact way, for the cases above that need it; the value is positive
+
+    private ByteBuilder appendRounded(double value, int precision){
+        BigDecimal rounded = new BigDecimal(value).round(new MathContext(precision)).stripTrailingZeros();
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        return append(exponent >= -5 && exponent < 15 ? rounded.toPlainString() : rounded.toString());
+    }
+
+    private void ensureSpace(int count){
+        if(length + count > bytes.length){
+            byte[] newBytes = new byte[Math.max(2*bytes.length, length + count)];
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+        }
+    }
+
+}
@@ -0,0 +1,308 @@
+package virustreesimulator;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a comma-separated file into rows and fields without making a String per field. Each row is read into a
+ * reused character buffer and fields are only converted when asked for; numbers are parsed straight from the
+ * buffer. Surrounding double quotes are removed from fields, a quoted field may contain commas, and a doubled
+ * quote inside one stands for a quote.
+ */
+
+public class CsvTokenizer {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // exact powers of ten; a mantissa below 2^53 divided or multiplied by one of these is correctly rounded
+    private static final double[] POWERS_OF_TEN = {1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10, 1E11,
+            1E12, 1E13, 1E14, 1E15, 1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22};
+
+    private Reader reader;
+    private char[] buffer;
+    private int bufferPosition;
+    private int bufferLimit;
+
+    private char[] row;
+    private int rowLength;
+    private int[] fieldStarts;
+    private int[] fieldEnds;
+    private boolean[] fieldEscaped;
+    private int fieldCount;
+    private long rowNumber;
+
+    public CsvTokenizer(Reader reader){
+        this.reader = reader;
+        buffer = new char[BUFFER_SIZE];
+        row = new char[256];
+        fieldStarts = new int[16];
+        fieldEnds = new int[16];
+        fieldEscaped = new boolean[16];
+    }
+
+    public CsvTokenizer(String fileName) throws IOException{
+        this(new FileReader(fileName));
+    }
+
+    // reads the next non-empty row, returning false at the end of the input
+
+    public boolean nextRow() throws IOException{
+        do {
+            if(!readLine()){
+                return false;
+            }
+        } while(rowLength==0);
+
+        splitRow();
+        return true;
+    }
+
+    public int getFieldCount(){
+        return fieldCount;
+    }
+
+    // one-based, counting empty rows
+
+    public long getRowNumber(){
+        return rowNumber;
+    }
+
+    public String getString(int field){
+        checkField(field);
+        String out = new String(row, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+        return fieldEscaped[field] ? out.replace("\"\"", "\"") : out;
+    }
+
+    public boolean fieldEquals(int field, String value){
+        checkField(field);
+        int length = fieldEnds[field] - fieldStarts[field];
+        if(fieldEscaped[field]){
+            return getString(field).equals(value);
+        }
+        if(length!=value.length()){
+            return false;
+        }
+        for(int i=0; i<length; i++){
+            if(row[fieldStarts[field]+i]!=value.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the index of the first field in the current row equal to this, or -1
+
+    public int findField(String value){
+        for(int i=0; i<fieldCount; i++){
+            if(fieldEquals(i, value)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getInt(int field){
+        checkField(field);
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+
+        boolean negative = start < end && row[start]=='-';
+        int position = negative || (start < end && row[start]=='+') ? start+1 : start;
+
+        if(position==end || end - position > 9){
+            return Integer.parseInt(getString(field).trim());
+        }
+
+        int out = 0;
+        for(; position<end; position++){
+            int digit = row[position] - '0';
+            if(digit < 0 || digit > 9){
+                return Integer.parseInt(getString(field).trim());
+            }
+            out = out*10 + digit;
+        }
+        return negative ? -out : out;
+    }
+
+    // plain decimals with up to 15 significant digits are parsed here; anything else goes to Double.parseDouble,
+    // which gives the same result
+
+    public double getDouble(int field){
+        checkField(field);
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+
+        boolean negative = start < end && row[start]=='-';
+        int position = negative || (start < end && row[start]=='+') ? start+1 : start;
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        boolean seenDigit = false;
+
+        for(; position<end; position++){
+            char c = row[position];
+            if(c >= '0' && c <= '9'){
+                seenDigit = true;
+                if(mantissa!=0 || c!='0'){
+                    digits++;
+                }
+                if(digits > 15){
+                    return parseDoubleSlowly(field);
+                }
+                mantissa = mantissa*10 + (c - '0');
+                if(seenPoint){
+                    fractionDigits++;
+                }
+            } else if(c=='.' && !seenPoint){
+                seenPoint = true;
+            } else {
+                return parseDoubleSlowly(field);
+            }
+        }
+
+        if(!seenDigit || fractionDigits >= POWERS_OF_TEN.length){
+            return parseDoubleSlowly(field);
+        }
+
+        double out = (double)mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -out : out;
+    }
+
+    public void close() throws IOException{
+        reader.close();
+    }
+
+    private double parseDoubleSlowly(int field){
+        return Double.parseDouble(getString(field).trim());
+    }
+
+    private void checkField(int field){
+        if(field >= fieldCount){
+            throw new RuntimeException("Row " + rowNumber + " has " + fieldCount + " fields; expected at least "
+                    + (field+1));
+        }
+    }
+
+    // reads up to the next line break (which may be \n, \r\n or \r) into the row buffer, keeping line breaks that
+    // are inside quotes
+
+    private boolean readLine() throws IOException{
+        rowLength = 0;
+        boolean inQuotes = false;
+        boolean readAnything = false;
+
+        while(true){
+            if(bufferPosition==bufferLimit){
+                bufferLimit = reader.read(buffer, 0, buffer.length);
+                bufferPosition = 0;
+                if(bufferLimit<=0){
+                    bufferLimit = 0;
+                    if(readAnything){
+                        rowNumber++;
+                    }
+                    return readAnything;
+                }
+            }
+
+            char c = buffer[bufferPosition++];
+            readAnything = true;
+
+            if(c=='"'){
+                inQuotes = !inQuotes;
+            } else if(!inQuotes && (c=='\n' || c=='\r')){
+                if(c=='\r'){
+                    skipLineFeed();
+                }
+                rowNumber++;
+                return true;
+            }
+
+            if(rowLength==row.length){
+                char[] newRow = new char[row.length*2];
+                System.arraycopy(row, 0, newRow, 0, rowLength);
+                row = newRow;
+            }
+            row[rowLength++] = c;
+        }
+    }
+
+    private void skipLineFeed() throws IOException{
+        if(bufferPosition==bufferLimit){
+            bufferLimit = reader.read(buffer, 0, buffer.length);
+            bufferPosition = 0;
+            if(bufferLimit<=0){
+                bufferLimit = 0;
+                return;
+            }
+        }
+        if(buffer[bufferPosition]=='\n'){
+            bufferPosition++;
+        }
+    }
+
+    private void splitRow(){
+        fieldCount = 0;
+        int position = 0;
+
+        while(true){
+            if(fieldCount==fieldStarts.length){
+                int newLength = fieldStarts.length*2;
+                int[] newStarts = new int[newLength];
+                int[] newEnds = new int[newLength];
+                boolean[] newEscaped = new boolean[newLength];
+                System.arraycopy(fieldStarts, 0, newStarts, 0, fieldCount);
+                System.arraycopy(fieldEnds, 0, newEnds, 0, fieldCount);
+                System.arraycopy(fieldEscaped, 0, newEscaped, 0, fieldCount);
+                fieldStarts = newStarts;
+                fieldEnds = newEnds;
+                fieldEscaped = newEscaped;
+            }
+
+            int end;
+            boolean escaped = false;
+
+            if(position < rowLength && row[position]=='"'){
+                int start = position+1;
+                end = start;
+                while(end < rowLength){
+                    if(row[end]=='"'){
+                        if(end+1 < rowLength && row[end+1]=='"'){
+                            escaped = true;
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                fieldStarts[fieldCount] = start;
+                fieldEnds[fieldCount] = end;
+                // skip the closing quote and anything else up to the comma
+                position = end;
+                while(position < rowLength && row[position]!=','){
+                    position++;
+                }
+            } else {
+                end = position;
+                while(end < rowLength && row[end]!=','){
+                    end++;
+                }
+                fieldStarts[fieldCount] = position;
+                fieldEnds[fieldCount] = end;
+                position = end;
+            }
+
+            fieldEscaped[fieldCount] = escaped;
+            fieldCount++;
+
+            if(position >= rowLength){
+                return;
+            }
+            position++;
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package virustreesimulator;
+
+/**
+ * An infection of one unit by another (or an introduction, if there is no infector), or a sampling of a unit.
+ * Multiple samples at the same time and multiple lineages transmitted to the same host at the same time are _one_
+ * event with several instances.
+ *
+ * @author mhall
+ */
+
+public class Event implements Comparable<Event> {
+
+    EventType type;
+    double time;
+    int instances;
+    InfectedUnit infector;
+    InfectedUnit infectee;
+
+    Event(EventType type, double time, int instances){
+        this.type = type;
+        this.time = time;
+        this.instances = instances;
+    }
+
+    Event(EventType type, double time, InfectedUnit infector, InfectedUnit infectee){
+        this.type = type;
+        this.time = time;
+        this.infector = infector;
+        this.infectee = infectee;
+        this.instances = 1;
+    }
+
+    public EventType getType(){
+        return type;
+    }
+
+    public double getTime(){
+        return time;
+    }
+
+    public int getInstances(){
+        return instances;
+    }
+
+    // null for an introduction or a sampling
+
+    public InfectedUnit getInfector(){
+        return infector;
+    }
+
+    // null for a sampling
+
+    public InfectedUnit getInfectee(){
+        return infectee;
+    }
+
+    public int compareTo(Event event) {
+        return Double.compare(time, event.time);
+    }
+}
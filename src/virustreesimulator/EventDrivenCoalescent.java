@@ -0,0 +1,463 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.util.Date;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.math.MersenneTwisterFast;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+
+/**
+ * An alternative to building a treelet per host and grafting them together: the genealogy of an introduction is
+ * simulated in one sweep backwards in time. A single priority queue holds the samplings, the infections (where a
+ * host's remaining lineages pass to its infector) and each host's next coalescence; each host keeps its active
+ * lineages in an array, and its next coalescence is redrawn, on the intensity scale, whenever that set changes.
+ * Every node is made once, in its final place, with its branch length set when it gets a parent.
+ * <p>
+ * The model is the same as for treelets, and each host draws from its own generator seeded as for treelets, but the
+ * draws are used in a different order, so the trees are different draws from the same distribution. When
+ * coalescence is forced, a host reaching its infection with more than one lineage has its own coalescences redrawn
+ * until they complete, as the treelet engine does; a host with exactly two lineages draws its one coalescence from
+ * the truncated distribution instead.
+ * <p>
+ * Node heights hold the time of each node while the sweep runs; the trees are given heights from their branch
+ * lengths at the end, as treelet trees are.
+ */
+
+public class EventDrivenCoalescent {
+
+    // at the same time, lineages arrive before coalescences, and a host's infection comes last
+    private static final int ARRIVAL = 0;
+    private static final int COALESCENCE = 1;
+    private static final int INFECTION = 2;
+
+    private DemographicFunction demFunct;
+    private boolean forceCoalescence;
+    private boolean detailedTrees;
+    private boolean numberedTips;
+    private boolean importanceWeighted;
+    private long masterSeed;
+    private PrintStream progressStream;
+
+    private PriorityQueue<Step> queue;
+    private long stepCount;
+    private double coalescentProbability;
+    private double logWeight;
+
+    public EventDrivenCoalescent(DemographicFunction demFunct, boolean forceCoalescence, boolean detailedTrees,
+                                 boolean numberedTips, boolean importanceWeighted, long masterSeed,
+                                 PrintStream progressStream){
+        // the truncated draws assume every host ends with one lineage, and without forcing a host may pass on more
+        // lineages than its count of sampled infectees, which is then only the least it could receive
+        if(importanceWeighted && !forceCoalescence){
+            throw new IllegalArgumentException("Importance weighting needs forced coalescence");
+        }
+        this.demFunct = demFunct;
+        this.forceCoalescence = forceCoalescence;
+        this.detailedTrees = detailedTrees;
+        this.numberedTips = numberedTips;
+        this.importanceWeighted = importanceWeighted;
+        this.masterSeed = masterSeed;
+        this.progressStream = progressStream;
+    }
+
+    /**
+     * The lineages remaining at the infection of this introduced case, as the treelet engine's subtree roots: in
+     * detailed form each is an infection node above its first split, in simple form the first split itself with
+     * its branch length running to the infection.
+     */
+
+    public ArrayList<FlexibleNode> simulate(InfectedUnit introduction){
+        queue = new PriorityQueue<Step>(64, new Comparator<Step>() {
+            public int compare(Step s1, Step s2) {
+                int result = Double.compare(s2.time, s1.time);
+                if(result==0){
+                    result = s1.kind - s2.kind;
+                }
+                if(result==0){
+                    result = s1.order < s2.order ? -1 : (s1.order > s2.order ? 1 : 0);
+                }
+                return result;
+            }
+        });
+        stepCount = 0;
+        coalescentProbability = 1;
+        logWeight = 0;
+
+        Host introductionHost = makeHosts(introduction);
+
+        ArrayList<FlexibleNode> roots = new ArrayList<FlexibleNode>();
+
+        while(!queue.isEmpty()){
+            Step step = queue.poll();
+            Host host = step.host;
+
+            switch(step.kind){
+                case ARRIVAL: {
+                    int instances = step.event.instances;
+                    for(int i=0; i<instances; i++){
+                        FlexibleNode tip = makeTip(host, step.event, i, instances);
+                        addLineage(host, tip, step.time);
+                    }
+                    scheduleCoalescence(host, step.time);
+                    break;
+                }
+                case COALESCENCE: {
+                    if(step.version==host.version){
+                        coalesce(host, step.time);
+                        scheduleCoalescence(host, step.time);
+                    }
+                    break;
+                }
+                case INFECTION: {
+                    finishHost(host);
+                    if(host==introductionHost){
+                        roots = makeRoots(host);
+                    } else {
+                        transmit(host);
+                    }
+                    break;
+                }
+            }
+        }
+
+        queue = null;
+        return roots;
+    }
+
+    // the product over hosts of the chance that all their lineages coalesce before infection, as for treelets
+
+    public double getCoalescentProbability(){
+        return coalescentProbability;
+    }
+
+    // in importance-weighted mode, the log of the product of the chances of the truncated coalescence times
+
+    public double getLogWeight(){
+        return logWeight;
+    }
+
+    // a host for each unit in the clade, with its samplings and infection queued; only hosts with samples somewhere
+    // in their clade take part
+
+    private Host makeHosts(InfectedUnit introduction){
+        ArrayList<InfectedUnit> order = new ArrayList<InfectedUnit>();
+        ArrayDeque<InfectedUnit> stack = new ArrayDeque<InfectedUnit>();
+        stack.push(introduction);
+        while(!stack.isEmpty()){
+            InfectedUnit unit = stack.pop();
+            order.add(unit);
+            for(Event event : unit.childEvents){
+                if(event.type == EventType.INFECTION){
+                    stack.push(event.infectee);
+                }
+            }
+        }
+
+        IdentityHashMap<InfectedUnit, Host> hosts = new IdentityHashMap<InfectedUnit, Host>();
+
+        // children before parents, so that arrivals from sampled infectees can be counted
+        for(int i=order.size()-1; i>=0; i--){
+            InfectedUnit unit = order.get(i);
+
+            // without forcing, an infectee may pass on more than one lineage, so this is only the least there
+            // could be
+            int arrivals = 0;
+            for(Event event : unit.childEvents){
+                if(event.type == EventType.SAMPLE){
+                    arrivals += event.instances;
+                } else if(event.type == EventType.INFECTION && hosts.containsKey(event.infectee)){
+                    arrivals++;
+                }
+            }
+
+            if(arrivals==0){
+                continue;
+            }
+
+            Host host = new Host(unit, new MersenneTwisterFast(Seeds.derive(masterSeed, unit.id)), arrivals);
+            if(forceCoalescence){
+                host.arrivals = new ArrayList<FlexibleNode>(arrivals);
+                host.arrivalTimes = new double[arrivals];
+            }
+            hosts.put(unit, host);
+
+            for(Event event : unit.childEvents){
+                if(event.type == EventType.SAMPLE){
+                    queue.add(new Step(event.time, ARRIVAL, host, event, 0, stepCount++));
+                }
+            }
+            queue.add(new Step(unit.infectionEvent.time, INFECTION, host, null, 0, stepCount++));
+        }
+
+        for(Host host : hosts.values()){
+            if(host.unit.parent!=null){
+                host.infector = hosts.get(host.unit.parent);
+            }
+        }
+
+        return hosts.get(introduction);
+    }
+
+    private FlexibleNode makeTip(Host host, Event event, int instanceCount, int instances){
+        InfectedUnit unit = host.unit;
+        Taxon taxon = new Taxon(VirusTreeSimulator.getTipName(unit, event, instanceCount, instances, numberedTips));
+        taxon.setDate(new Date(event.time - unit.infectionEvent.time, Units.Type.YEARS, false));
+        FlexibleNode tip = new FlexibleNode(taxon);
+        tip.setHeight(event.time);
+        if(detailedTrees){
+            tip.setAttribute("Event", event);
+            tip.setAttribute("Unit", unit.id);
+        }
+        return tip;
+    }
+
+    private void addLineage(Host host, FlexibleNode lineage, double time){
+        pushLineage(host, lineage);
+
+        if(host.arrivals!=null){
+            int index = host.arrivals.size();
+            if(index==host.arrivalTimes.length){
+                host.arrivalTimes = Arrays.copyOf(host.arrivalTimes, index*2);
+            }
+            host.arrivals.add(lineage);
+            host.arrivalTimes[index] = time;
+        }
+        host.latestArrivalHeight = Math.max(host.latestArrivalHeight, host.unit.infectionEvent.time - time);
+    }
+
+    private static void pushLineage(Host host, FlexibleNode lineage){
+        if(host.count==host.lineages.length){
+            host.lineages = Arrays.copyOf(host.lineages, host.lineages.length*2);
+        }
+        host.lineages[host.count++] = lineage;
+        host.arrived++;
+    }
+
+    // queues the host's next coalescence, if it comes before the infection
+
+    private void scheduleCoalescence(Host host, double time){
+        host.version++;
+        double coalescenceTime = drawCoalescenceTime(host, time);
+        if(coalescenceTime > Double.NEGATIVE_INFINITY){
+            queue.add(new Step(coalescenceTime, COALESCENCE, host, null, host.version, stepCount++));
+        }
+    }
+
+    // the time of the host's next coalescence after this one (backwards), or minus infinity if it would come
+    // before the infection
+
+    private double drawCoalescenceTime(Host host, double time){
+        int lineages = host.count;
+        if(lineages < 2){
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double infectionTime = host.unit.infectionEvent.time;
+        double height = infectionTime - time;
+        double startIntensity = demFunct.getIntensity(height);
+        double available = demFunct.getIntensity(0) - startIntensity;
+
+        double drawn;
+        if(importanceWeighted && host.arrived==host.expectedArrivals){
+            // no more lineages will arrive, so the next coalescence is drawn from before the infection
+            double rate = lineages*(lineages-1)/2.0;
+            drawn = -Math.log1p(host.random.nextDouble()*Math.expm1(-rate*available))/rate;
+            drawn = Math.min(drawn, available);
+            logWeight += Math.log(-Math.expm1(-rate*available));
+        } else if(forceCoalescence && host.expectedArrivals==2 && host.arrived==2){
+            // the whole treelet is one pair, which can be conditioned on coalescing directly
+            drawn = -Math.log1p(host.random.nextDouble()*Math.expm1(-available));
+        } else {
+            drawn = -Math.log(host.random.nextDouble())/(lineages*(lineages-1)/2.0);
+            if(drawn >= available){
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
+
+        double coalescenceHeight = demFunct.getInverseIntensity(startIntensity + drawn);
+        coalescenceHeight = Math.min(Math.max(coalescenceHeight, height), 0);
+
+        return infectionTime - coalescenceHeight;
+    }
+
+    private void coalesce(Host host, double time){
+        int lineages = host.count;
+        int first = host.random.nextInt(lineages);
+        int second = host.random.nextInt(lineages-1);
+        if(second >= first){
+            second++;
+        }
+
+        FlexibleNode parent = new FlexibleNode();
+        parent.setHeight(time);
+        if(detailedTrees){
+            parent.setAttribute("Unit", host.unit.id);
+        }
+        attach(parent, host.lineages[first]);
+        attach(parent, host.lineages[second]);
+
+        host.lineages[first] = parent;
+        host.lineages[second] = host.lineages[lineages-1];
+        host.lineages[lineages-1] = null;
+        host.count--;
+    }
+
+    private static void attach(FlexibleNode parent, FlexibleNode child){
+        parent.addChild(child);
+        child.setLength(child.getHeight() - parent.getHeight());
+    }
+
+    // called at the host's infection: records its chance of coalescence and, if forced, redraws its coalescences
+    // until only one lineage is left
+
+    private void finishHost(Host host){
+        host.version++;
+
+        if(host.arrived > 1){
+            double probNoCoalescenceInTime = Math.exp(demFunct.getIntensity(host.latestArrivalHeight));
+            coalescentProbability *= (1-probNoCoalescenceInTime);
+        }
+
+        if(!forceCoalescence || host.count <= 1){
+            return;
+        }
+
+        int failCount = 0;
+        while(host.count > 1){
+            failCount++;
+            progressStream.println("Failed to coalesce lineages: "+failCount);
+            redraw(host);
+        }
+    }
+
+    // the host's coalescences again, from its arrivals alone (which came in backwards order of time)
+
+    private void redraw(Host host){
+        ArrayList<FlexibleNode> arrivals = host.arrivals;
+        double[] arrivalTimes = host.arrivalTimes;
+
+        host.count = 0;
+        host.arrived = 0;
+
+        int next = 0;
+        double time = arrivalTimes[0];
+
+        while(true){
+            while(next < arrivals.size() && arrivalTimes[next]==time){
+                pushLineage(host, arrivals.get(next++));
+            }
+
+            double coalescenceTime = drawCoalescenceTime(host, time);
+
+            if(next < arrivals.size() && coalescenceTime <= arrivalTimes[next]){
+                time = arrivalTimes[next];
+            } else if(coalescenceTime > Double.NEGATIVE_INFINITY){
+                coalesce(host, coalescenceTime);
+                time = coalescenceTime;
+            } else {
+                return;
+            }
+        }
+    }
+
+    // the host's remaining lineages become tips of its infector at the time of infection
+
+    private void transmit(Host host){
+        Host infector = host.infector;
+        Event infection = host.unit.infectionEvent;
+        int lineages = host.count;
+
+        for(int i=0; i<lineages; i++){
+            FlexibleNode lineage = host.lineages[i];
+            if(detailedTrees){
+                FlexibleNode tip = makeTip(infector, infection, i, lineages);
+                attach(tip, lineage);
+                addLineage(infector, tip, infection.time);
+            } else {
+                addLineage(infector, lineage, infection.time);
+            }
+        }
+        host.lineages = null;
+
+        scheduleCoalescence(infector, infection.time);
+    }
+
+    private ArrayList<FlexibleNode> makeRoots(Host host){
+        ArrayList<FlexibleNode> roots = new ArrayList<FlexibleNode>();
+        Event infection = host.unit.infectionEvent;
+
+        for(int i=0; i<host.count; i++){
+            FlexibleNode lineage = host.lineages[i];
+            if(detailedTrees){
+                FlexibleNode infectionNode = new FlexibleNode();
+                infectionNode.setHeight(infection.time);
+                attach(infectionNode, lineage);
+                infectionNode.setAttribute("Event", infection);
+                infectionNode.setAttribute("TransmittedLineage", i+1);
+                infectionNode.setAttribute("Unit", host.unit.id);
+                roots.add(infectionNode);
+            } else {
+                lineage.setLength(lineage.getHeight() - infection.time);
+                roots.add(lineage);
+            }
+        }
+        return roots;
+    }
+
+    private static class Host {
+        private InfectedUnit unit;
+        private Host infector;
+        private MersenneTwisterFast random;
+
+        private FlexibleNode[] lineages;
+        private int count;
+
+        // bumped whenever the lineages change, so queued coalescences drawn for an earlier set are skipped
+        private long version;
+
+        // lineages expected (exact if coalescence is forced) and received so far
+        private int expectedArrivals;
+        private int arrived;
+        private double latestArrivalHeight;
+
+        // every lineage that arrived and when, kept for redrawing; null unless coalescence is forced
+        private ArrayList<FlexibleNode> arrivals;
+        private double[] arrivalTimes;
+
+        private Host(InfectedUnit unit, MersenneTwisterFast random, int expectedArrivals){
+            this.unit = unit;
+            this.random = random;
+            this.expectedArrivals = expectedArrivals;
+            lineages = new FlexibleNode[Math.max(2, expectedArrivals)];
+            latestArrivalHeight = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static class Step {
+        private double time;
+        private int kind;
+        private Host host;
+        private Event event;
+        private long version;
+        private long order;
+
+        private Step(double time, int kind, Host host, Event event, long version, long order){
+            this.time = time;
+            this.kind = kind;
+            this.host = host;
+            this.event = event;
+            this.version = version;
+            this.order = order;
+        }
+    }
+
+}
@@ -0,0 +1,9 @@
+package virustreesimulator;
+
+/**
+ * @author mhall
+ */
+
+public enum EventType {
+    INFECTION, SAMPLE
+}
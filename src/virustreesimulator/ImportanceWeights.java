@@ -0,0 +1,49 @@
+package virustreesimulator;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * The log importance weight of each introduction's trees in importance-weighted mode, written as a CSV file. The
+ * trees of one introduction share its weight, which is the probability of drawing complete coalescence in every
+ * unit; averaging a statistic over runs, weighted by exp(LogWeight), estimates its expectation under forced
+ * coalescence without any rejected draws.
+ */
+
+public class ImportanceWeights {
+
+    private static final String HEADER = "Introduction,Trees,LogWeight";
+
+    private ArrayList<String> introductions;
+    private ArrayList<Integer> trees;
+    private ArrayList<Double> logWeights;
+
+    public ImportanceWeights(){
+        introductions = new ArrayList<String>();
+        trees = new ArrayList<Integer>();
+        logWeights = new ArrayList<Double>();
+    }
+
+    public synchronized void record(String introduction, int treeCount, double logWeight){
+        introductions.add(introduction);
+        trees.add(treeCount);
+        logWeights.add(logWeight);
+    }
+
+    public synchronized void write(String fileName) throws IOException{
+        PrintStream out = new PrintStream(fileName);
+        try {
+            out.println(HEADER);
+            for(int i=0; i<introductions.size(); i++){
+                out.println(introductions.get(i) + "," + trees.get(i) + "," + logWeights.get(i));
+            }
+        } finally {
+            out.close();
+        }
+        if(out.checkError()){
+            throw new IOException("Cannot write " + fileName);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package virustreesimulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A host in the transmission tree, with the event that infected it and the events (onward infections and
+ * samplings) that happened to it afterwards. Samplings at the same time are merged into one event, however many rows
+ * they came from.
+ *
+ * @author mhall
+ */
+
+public class InfectedUnit {
+
+    String id;
+    ArrayList<Event> childEvents;
+    Event infectionEvent;
+    InfectedUnit parent;
+
+    // the first sampling, and all samplings by time once there is more than one
+    private Event firstSampling;
+    private HashMap<Double, Event> samplingsByTime;
+
+    InfectedUnit(String id){
+        this.id = id;
+        parent = null;
+        childEvents = new ArrayList<Event>();
+    }
+
+    public String getId(){
+        return id;
+    }
+
+    public Event getInfectionEvent(){
+        return infectionEvent;
+    }
+
+    public InfectedUnit getParent(){
+        return parent;
+    }
+
+    public List<Event> getChildEvents(){
+        return Collections.unmodifiableList(childEvents);
+    }
+
+    void addSamplingEvent(double time, int instances){
+        if(infectionEvent!=null && time < infectionEvent.time){
+            throw new RuntimeException("Adding an event to case "+id+" before its infection time");
+        }
+
+        Event existing = getSampling(time);
+        if(existing!=null){
+            existing.instances += instances;
+            return;
+        }
+
+        Event event = new Event(EventType.SAMPLE, time, instances);
+        childEvents.add(event);
+
+        if(firstSampling==null){
+            firstSampling = event;
+        } else {
+            if(samplingsByTime==null){
+                samplingsByTime = new HashMap<Double, Event>();
+                samplingsByTime.put(firstSampling.time, firstSampling);
+            }
+            samplingsByTime.put(time, event);
+        }
+    }
+
+    private Event getSampling(double time){
+        if(samplingsByTime!=null){
+            return samplingsByTime.get(time);
+        }
+        return firstSampling!=null && firstSampling.time==time ? firstSampling : null;
+    }
+
+    void setInfectionEvent(Event event){
+        for(Event childEvent : childEvents){
+            if(event.time > childEvent.time){
+
+                if(childEvent.type == EventType.SAMPLE){
+                    throw new RuntimeException("Setting infection time for case "+id+" after its sampling at "+
+                            childEvent.time);
+                } else {
+                    String childUnitName = childEvent.infectee.id;
+
+                    throw new RuntimeException("Setting infection time for case "+id+" after it infected "
+                            +childUnitName+" at "+childEvent.time);
+                }
+            }
+        }
+        infectionEvent = event;
+    }
+
+    void addInfectionEvent(Event event){
+        if(infectionEvent!=null && event.time < infectionEvent.time){
+            throw new RuntimeException("Adding an infection event to case "+id+" at "+event.time+" before its " +
+                    "infection time at "+infectionEvent.time);
+        }
+        childEvents.add(event);
+    }
+
+}
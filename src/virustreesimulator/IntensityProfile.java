@@ -0,0 +1,85 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+
+import java.util.Arrays;
+
+/**
+ * The coalescent intensity of a demographic function evaluated at each distinct tip height of a treelet and at the
+ * upper bound (the infection time) - everything a simulation of that treelet needs apart from the inverse intensity
+ * at the coalescence times themselves. Heights are in the frame used by the simulators: non-positive, with the
+ * infection at zero.
+ */
+
+public class IntensityProfile {
+
+    private double[] heights;
+    private double[] intensities;
+    private double bound;
+    private double boundIntensity;
+
+    private IntensityProfile(double[] heights, double[] intensities, double bound, double boundIntensity){
+        this.heights = heights;
+        this.intensities = intensities;
+        this.bound = bound;
+        this.boundIntensity = boundIntensity;
+    }
+
+    // heights must be sorted and distinct
+
+    public static IntensityProfile build(double[] heights, double bound, DemographicFunction demogFunct){
+        double[] intensities = new double[heights.length];
+        for(int i=0; i<heights.length; i++){
+            intensities[i] = demogFunct.getIntensity(heights[i]);
+        }
+        return new IntensityProfile(heights, intensities, bound, demogFunct.getIntensity(bound));
+    }
+
+    public int getHeightCount(){
+        return heights.length;
+    }
+
+    public double getHeight(int i){
+        return heights[i];
+    }
+
+    public double getIntensity(int i){
+        return intensities[i];
+    }
+
+    public double getBound(){
+        return bound;
+    }
+
+    public double getBoundIntensity(){
+        return boundIntensity;
+    }
+
+    /**
+     * The relative tip heights and bound, used as the key for cached profiles.
+     */
+
+    public static class Key {
+        private double[] values;
+        private int hashCode;
+
+        public Key(double[] heights, double bound){
+            values = Arrays.copyOf(heights, heights.length + 1);
+            values[heights.length] = bound;
+            hashCode = Arrays.hashCode(values);
+        }
+
+        public int size(){
+            return values.length;
+        }
+
+        public int hashCode(){
+            return hashCode;
+        }
+
+        public boolean equals(Object other){
+            return other instanceof Key && Arrays.equals(values, ((Key)other).values);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of intensity profiles, keyed by the tip heights of a treelet relative to the infection
+ * time, so hosts with the same shape share one set of intensity evaluations. Every profile in the cache must come
+ * from the same demographic function. The limit is on the total number of cached heights, which is what the memory
+ * use scales with.
+ *
+ * Only those intensities are cached. The inverse intensity, evaluated once per coalescence at a random point, is
+ * still computed by the demographic function on every draw; with -tabulate that is a search of the table rather
+ * than a call to the original function.
+ */
+
+public class IntensityProfileCache {
+
+    private int maxValues;
+    private int values;
+    private LinkedHashMap<IntensityProfile.Key, IntensityProfile> profiles;
+
+    private int hits;
+    private int misses;
+
+    public IntensityProfileCache(int maxValues){
+        this.maxValues = maxValues;
+        profiles = new LinkedHashMap<IntensityProfile.Key, IntensityProfile>(16, 0.75f, true);
+    }
+
+    public synchronized IntensityProfile get(double[] heights, double bound, DemographicFunction demogFunct){
+        IntensityProfile.Key key = new IntensityProfile.Key(heights, bound);
+        IntensityProfile profile = profiles.get(key);
+        if(profile==null){
+            misses++;
+            profile = IntensityProfile.build(heights, bound, demogFunct);
+            values += key.size();
+            profiles.put(key, profile);
+            evict(key);
+        } else {
+            hits++;
+        }
+        return profile;
+    }
+
+    // drops least recently used profiles until back under the limit, never the one just added
+
+    private void evict(IntensityProfile.Key newest){
+        Iterator<Map.Entry<IntensityProfile.Key, IntensityProfile>> it = profiles.entrySet().iterator();
+        while(values > maxValues && it.hasNext()){
+            IntensityProfile.Key key = it.next().getKey();
+            if(key.equals(newest)){
+                break;
+            }
+            values -= key.size();
+            it.remove();
+        }
+    }
+
+    public synchronized int getHitCount(){
+        return hits;
+    }
+
+    public synchronized int getMissCount(){
+        return misses;
+    }
+
+}
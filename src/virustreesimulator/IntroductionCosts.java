@@ -0,0 +1,103 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Predicts how long the trees descending from a unit will take to simulate, for scheduling. A unit's own treelet
+ * is costed at one unit per lineage (samples, and transmissions to infectees with samples among their descendants,
+ * the same events the simulator builds the treelet from) times the number of attempts expected before all
+ * lineages coalesce; when coalescence is forced, that is one over the chance that the last lineage to arrive
+ * coalesces before the infection. A clade costs the sum over its units. Only the graph and the demographic
+ * function are used, so the prediction can be made before anything is simulated.
+ */
+
+public class IntroductionCosts {
+
+    // a treelet is not expected to need more attempts than this, however improbable it is
+    private static final double MAX_ATTEMPTS = 1000;
+
+    private DemographicFunction demFunct;
+    private boolean forceCoalescence;
+    private IdentityHashMap<InfectedUnit, Double> cladeCosts;
+    // whether any sample is taken from the unit or its descendants
+    private IdentityHashMap<InfectedUnit, Boolean> sampledClades;
+
+    public IntroductionCosts(DemographicFunction demFunct, boolean forceCoalescence){
+        this.demFunct = demFunct;
+        this.forceCoalescence = forceCoalescence;
+        cladeCosts = new IdentityHashMap<InfectedUnit, Double>();
+        sampledClades = new IdentityHashMap<InfectedUnit, Boolean>();
+    }
+
+    // the cost of this unit and everything descending from it
+
+    public synchronized double getCladeCost(InfectedUnit unit){
+        Double known = cladeCosts.get(unit);
+        if(known!=null){
+            return known;
+        }
+
+        // post-order without recursion, since chains of infections can be very long
+
+        ArrayList<InfectedUnit> order = new ArrayList<InfectedUnit>();
+        ArrayDeque<InfectedUnit> stack = new ArrayDeque<InfectedUnit>();
+        stack.push(unit);
+        while(!stack.isEmpty()){
+            InfectedUnit current = stack.pop();
+            order.add(current);
+            for(Event event : current.childEvents){
+                if(event.type == EventType.INFECTION && !cladeCosts.containsKey(event.infectee)){
+                    stack.push(event.infectee);
+                }
+            }
+        }
+
+        for(int i=order.size()-1; i>=0; i--){
+            InfectedUnit current = order.get(i);
+            double cost = 0;
+            boolean sampled = false;
+            for(Event event : current.childEvents){
+                if(event.type == EventType.INFECTION){
+                    cost += cladeCosts.get(event.infectee);
+                    sampled |= sampledClades.get(event.infectee);
+                } else {
+                    sampled = true;
+                }
+            }
+            sampledClades.put(current, sampled);
+            // after the infectees, so that whether they are sampled is known
+            cladeCosts.put(current, cost + getTreeletCost(current));
+        }
+
+        return cladeCosts.get(unit);
+    }
+
+    private double getTreeletCost(InfectedUnit unit){
+        int lineages = 0;
+        double latestArrival = Double.NEGATIVE_INFINITY;
+
+        for(Event event : unit.childEvents){
+            if(event.type == EventType.INFECTION && !sampledClades.get(event.infectee)){
+                continue;
+            }
+            lineages += event.type == EventType.SAMPLE ? event.instances : 1;
+            if(unit.infectionEvent!=null){
+                latestArrival = Math.max(latestArrival, unit.infectionEvent.time - event.time);
+            }
+        }
+
+        if(lineages < 3 || !forceCoalescence || latestArrival == Double.NEGATIVE_INFINITY){
+            return lineages;
+        }
+
+        double available = demFunct.getIntensity(0) - demFunct.getIntensity(latestArrival);
+        double probability = -Math.expm1(-available);
+
+        return lineages * Math.min(MAX_ATTEMPTS, 1/probability);
+    }
+
+}
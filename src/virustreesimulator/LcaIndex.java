@@ -0,0 +1,267 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Answers lowest common ancestor queries on a finished tree in constant time, and extracts the subtree induced by a
+ * set of k tips in O(k log k), without walking the rest of the tree.
+ * <p>
+ * The nodes are numbered in depth-first (pre-)order, the compact form of the Euler tour: for two nodes u and v with
+ * u first, their ancestor is the parent of the shallowest node numbered after u up to v. A sparse table of the
+ * shallowest node in each run of a power-of-two length answers that in two lookups, at the cost of n log n ints.
+ * <p>
+ * The induced subtree keeps the chosen tips and the common ancestors of every pair of them, with branch lengths
+ * from the differences in height, so nodes with one child (transmissions in detailed trees) do not appear and the
+ * result is the same from a detailed tree as from its simple form.
+ */
+
+public class LcaIndex {
+
+    private Tree tree;
+
+    // by pre-order number
+    private NodeRef[] nodes;
+    private int[] parent;
+    private int[] depth;
+    private int[] cladeSize;
+
+    private HashMap<NodeRef, Integer> numbers;
+    private HashMap<String, Integer> tipsByLabel;
+
+    // shallowest[j][i] is the shallowest node numbered from i to i + 2^j - 1
+    private int[][] shallowest;
+
+    public LcaIndex(Tree tree){
+        this.tree = tree;
+
+        int nodeCount = tree.getNodeCount();
+        nodes = new NodeRef[nodeCount];
+        parent = new int[nodeCount];
+        depth = new int[nodeCount];
+        cladeSize = new int[nodeCount];
+        numbers = new HashMap<NodeRef, Integer>(2*nodeCount);
+        tipsByLabel = new HashMap<String, Integer>(2*tree.getExternalNodeCount());
+
+        // explicit stack, as long transmission chains make for very deep trees
+
+        ArrayDeque<NodeRef> stack = new ArrayDeque<NodeRef>();
+        stack.push(tree.getRoot());
+        int next = 0;
+        while(!stack.isEmpty()){
+            NodeRef node = stack.pop();
+            NodeRef parentNode = tree.getParent(node);
+            int number = next++;
+
+            nodes[number] = node;
+            numbers.put(node, number);
+            parent[number] = parentNode==null ? -1 : numbers.get(parentNode);
+            depth[number] = parentNode==null ? 0 : depth[parent[number]] + 1;
+
+            Taxon taxon = tree.getNodeTaxon(node);
+            if(tree.isExternal(node) && taxon!=null){
+                tipsByLabel.put(taxon.getId(), number);
+            }
+
+            for(int i=tree.getChildCount(node)-1; i>=0; i--){
+                stack.push(tree.getChild(node, i));
+            }
+        }
+
+        // children come after their parents, so one backwards pass adds up the clades
+        for(int i=nodeCount-1; i>=0; i--){
+            cladeSize[i]++;
+            if(parent[i]!=-1){
+                cladeSize[parent[i]] += cladeSize[i];
+            }
+        }
+
+        int levels = 1;
+        while((1 << levels) <= nodeCount){
+            levels++;
+        }
+        shallowest = new int[levels][];
+        shallowest[0] = new int[nodeCount];
+        for(int i=0; i<nodeCount; i++){
+            shallowest[0][i] = i;
+        }
+        for(int j=1; j<levels; j++){
+            int half = 1 << (j-1);
+            int count = nodeCount - (1 << j) + 1;
+            shallowest[j] = new int[count];
+            for(int i=0; i<count; i++){
+                shallowest[j][i] = shallower(shallowest[j-1][i], shallowest[j-1][i+half]);
+            }
+        }
+    }
+
+    public Tree getTree(){
+        return tree;
+    }
+
+    // the tip with this label, or null if there is none
+
+    public NodeRef getTip(String label){
+        Integer number = tipsByLabel.get(label);
+        return number==null ? null : nodes[number];
+    }
+
+    public NodeRef getLca(NodeRef node1, NodeRef node2){
+        return nodes[lca(numbers.get(node1), numbers.get(node2))];
+    }
+
+    /**
+     * The subtree induced by the tips with these labels, as a new tree with copies of the nodes' taxa and attributes
+     * and of the tree's attributes; labels not in this tree are left out. Null if none of them are in it.
+     */
+
+    public FlexibleTree getInducedSubtree(Collection<String> labels){
+        int[] tips = new int[labels.size()];
+        int tipCount = 0;
+        for(String label : labels){
+            Integer number = tipsByLabel.get(label);
+            if(number!=null){
+                tips[tipCount++] = number;
+            }
+        }
+        if(tipCount==0){
+            return null;
+        }
+
+        tips = sortedDistinct(tips, tipCount);
+
+        // adjacent tips in pre-order give every branching ancestor the subtree needs
+        int[] members = Arrays.copyOf(tips, 2*tips.length - 1);
+        for(int i=1; i<tips.length; i++){
+            members[tips.length + i - 1] = lca(tips[i-1], tips[i]);
+        }
+        members = sortedDistinct(members, members.length);
+
+        // in pre-order each member's parent in the subtree is the nearest member on the stack that contains it
+        FlexibleNode[] copies = new FlexibleNode[members.length];
+        int[] stack = new int[members.length];
+        int stackSize = 0;
+
+        for(int i=0; i<members.length; i++){
+            int number = members[i];
+            copies[i] = copyNode(number);
+
+            while(stackSize > 0 && !contains(members[stack[stackSize-1]], number)){
+                stackSize--;
+            }
+            if(stackSize > 0){
+                int parentIndex = stack[stackSize-1];
+                copies[parentIndex].addChild(copies[i]);
+                copies[i].setLength(tree.getNodeHeight(nodes[members[parentIndex]]) -
+                        tree.getNodeHeight(nodes[number]));
+            }
+            stack[stackSize++] = i;
+        }
+
+        FlexibleTree out = new FlexibleTree(copies[0], true, true);
+        Iterator<String> names = tree.getAttributeNames();
+        while(names!=null && names.hasNext()){
+            String name = names.next();
+            out.setAttribute(name, tree.getAttribute(name));
+        }
+        return out;
+    }
+
+    /**
+     * Named sets of tip labels from a CSV file with a "Subset,Tip" header and a row per tip, in the order the
+     * subsets first appear.
+     */
+
+    public static LinkedHashMap<String, ArrayList<String>> readSubsets(String fileName) throws IOException{
+        LinkedHashMap<String, ArrayList<String>> subsets = new LinkedHashMap<String, ArrayList<String>>();
+        CsvTokenizer tokenizer = new CsvTokenizer(fileName);
+        try {
+            if(!tokenizer.nextRow() || tokenizer.getFieldCount() < 2 || !tokenizer.fieldEquals(0, "Subset")
+                    || !tokenizer.fieldEquals(1, "Tip")){
+                throw new IOException(fileName + " does not start with the header Subset,Tip");
+            }
+            while(tokenizer.nextRow()){
+                if(tokenizer.getFieldCount() < 2){
+                    throw new IOException("Row " + tokenizer.getRowNumber() + " of " + fileName + " has no tip");
+                }
+                String subset = tokenizer.getString(0);
+                ArrayList<String> tips = subsets.get(subset);
+                if(tips==null){
+                    tips = new ArrayList<String>();
+                    subsets.put(subset, tips);
+                }
+                tips.add(tokenizer.getString(1));
+            }
+        } finally {
+            tokenizer.close();
+        }
+        return subsets;
+    }
+
+    private FlexibleNode copyNode(int number){
+        NodeRef node = nodes[number];
+        FlexibleNode copy = new FlexibleNode();
+        if(tree.isExternal(node)){
+            copy.setTaxon(tree.getNodeTaxon(node));
+        }
+        copy.setHeight(tree.getNodeHeight(node));
+        Iterator names = tree.getNodeAttributeNames(node);
+        while(names!=null && names.hasNext()){
+            String name = (String)names.next();
+            copy.setAttribute(name, tree.getNodeAttribute(node, name));
+        }
+        return copy;
+    }
+
+    private int lca(int u, int v){
+        if(u==v){
+            return u;
+        }
+        if(u > v){
+            int swap = u;
+            u = v;
+            v = swap;
+        }
+
+        // the shallowest node numbered from u+1 to v
+        int length = v - u;
+        int level = 31 - Integer.numberOfLeadingZeros(length);
+        int node = shallower(shallowest[level][u+1], shallowest[level][v - (1 << level) + 1]);
+        return parent[node];
+    }
+
+    // whether the clade of ancestor includes node
+
+    private boolean contains(int ancestor, int node){
+        return node >= ancestor && node < ancestor + cladeSize[ancestor];
+    }
+
+    private int shallower(int node1, int node2){
+        return depth[node1] <= depth[node2] ? node1 : node2;
+    }
+
+    private static int[] sortedDistinct(int[] values, int count){
+        int[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for(int i=0; i<sorted.length; i++){
+            if(distinct==0 || sorted[i]!=sorted[distinct-1]){
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, distinct);
+    }
+
+}
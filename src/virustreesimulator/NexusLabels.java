@@ -0,0 +1,10 @@
+package virustreesimulator;
+
+/**
+ * How tips are labelled in Nexus files: in full in the tree string (through BEAST's exporter), as integer tokens
+ * with a TRANSLATE block giving the full labels, or as bare integer tokens with the labels in a separate table.
+ */
+
+public enum NexusLabels {
+    FULL, TRANSLATE, TABLE
+}
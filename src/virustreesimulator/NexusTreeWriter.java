@@ -0,0 +1,358 @@
+package virustreesimulator;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a tree as a Nexus trees block with its tips numbered 1, 2, ... in the order they appear in the tree
+ * string, rather than the full labels that BEAST's NexusExporter puts in both a taxa block and the tree string.
+ * With NexusLabels.TRANSLATE the block starts with a TRANSLATE table from the numbers to the labels, which BEAST and
+ * FigTree read back as ordinary taxon names; with NexusLabels.TABLE there is no table and the labels are left to a
+ * separate file (see labelTable()); with NexusLabels.FULL the labels are in the tree string.
+ * <p>
+ * Node attributes are written as [&name=value,...] comments and tree attributes as a comment after the tree's
+ * name, as BEAST logs them. Branch lengths (and attributes that are doubles) are rounded to the given number of
+ * significant digits, or written exactly if it is zero, and go straight into a ByteBuilder.
+ * <p>
+ * Given a pool, a large tree is written on several threads: one walk records the steps of the tree string (opening
+ * a clade, a tip, closing a clade) with the branch lengths, the steps are cut into runs that are written to
+ * separate buffers at once, and the buffers are joined in order. The bytes are the same as from a single thread.
+ */
+
+public class NexusTreeWriter {
+
+    // trees with fewer nodes than this are always written on one thread
+    static final int PARALLEL_NODE_COUNT = 50000;
+
+    // the fewest steps of the tree string in a run written by one task
+    static final int MIN_RUN_LENGTH = 10000;
+
+    private static final byte OPEN = 0;
+    private static final byte TIP = 1;
+    private static final byte CLOSE = 2;
+    // added to a step that is preceded by a comma
+    private static final byte AFTER_SIBLING = 4;
+
+    private NexusTreeWriter(){
+    }
+
+    // the whole file; the tip labels are added to tipLabels, if it is not null, in the order of their numbers
+
+    public static byte[] toBytes(Tree tree, NexusLabels labels, List<String> tipLabels){
+        return toBytes(tree, labels, 0, tipLabels);
+    }
+
+    public static byte[] toBytes(Tree tree, NexusLabels labels, int precision, List<String> tipLabels){
+        return toBytes(tree, labels, precision, tipLabels, null);
+    }
+
+    // as above, writing large trees on the threads of the pool if it is not null
+
+    public static byte[] toBytes(Tree tree, NexusLabels labels, int precision, List<String> tipLabels,
+                                 ForkJoinPool pool){
+        return toBytes(tree, labels, precision, tipLabels, pool, PARALLEL_NODE_COUNT, MIN_RUN_LENGTH);
+    }
+
+    // with the thresholds for splitting a tree given, so that small trees can be split too
+
+    static byte[] toBytes(Tree tree, NexusLabels labels, int precision, List<String> tipLabels, ForkJoinPool pool,
+                          int parallelNodeCount, int minRunLength){
+        if(precision < 0 || precision > ByteBuilder.MAX_PRECISION){
+            throw new IllegalArgumentException("Precision must be between 0 and " + ByteBuilder.MAX_PRECISION);
+        }
+
+        ArrayList<String> tips = new ArrayList<String>();
+        ByteBuilder newick = new ByteBuilder(32*tree.getNodeCount());
+        if(pool!=null && pool.getParallelism() > 1 && tree.getNodeCount() >= parallelNodeCount){
+            appendNewickInParallel(tree, labels==NexusLabels.FULL, precision, tips, newick, pool, minRunLength);
+        } else {
+            appendNewick(tree, labels==NexusLabels.FULL, precision, tips, newick);
+        }
+
+        ByteBuilder out = new ByteBuilder(newick.length() + (labels==NexusLabels.TRANSLATE ? 64*tips.size() : 0)
+                + 256);
+        out.append("#NEXUS\n\nBegin trees;\n");
+
+        if(labels==NexusLabels.TRANSLATE){
+            out.append("\tTranslate\n");
+            for(int i=0; i<tips.size(); i++){
+                out.append("\t\t").append(i+1).append(' ').append(safeName(tips.get(i)));
+                out.append(i < tips.size()-1 ? ",\n" : "\n");
+            }
+            out.append(";\n");
+        }
+
+        out.append("tree TREE1");
+        int nameEnd = out.length();
+        out.append(' ');
+        appendAttributes(tree.getAttributeNames(), tree, null, precision, out);
+        if(out.length()==nameEnd+1){
+            out.setLength(nameEnd);
+        }
+        out.append(" = [&R] ").append(newick).append(";\nEnd;\n");
+
+        if(tipLabels!=null){
+            tipLabels.addAll(tips);
+        }
+
+        return out.toByteArray();
+    }
+
+    // a CSV file of each tip's number and label, for NexusLabels.TABLE
+
+    public static byte[] labelTable(List<String> tipLabels){
+        ByteBuilder out = new ByteBuilder(64*tipLabels.size() + 16);
+        out.append("Token,Label\n");
+        for(int i=0; i<tipLabels.size(); i++){
+            String label = tipLabels.get(i);
+            out.append(i+1).append(',');
+            if(label.indexOf(',')!=-1 || label.indexOf('"')!=-1){
+                out.append('"').append(label.replace("\"", "\"\"")).append('"');
+            } else {
+                out.append(label);
+            }
+            out.append('\n');
+        }
+        return out.toByteArray();
+    }
+
+    // the tree string, numbering the tips as they are reached (or labelling them in full); an explicit stack, as long
+    // transmission chains make for very deep trees
+
+    private static void appendNewick(Tree tree, boolean fullLabels, int precision, ArrayList<String> tips,
+                                     ByteBuilder out){
+        NodeRef[] path = new NodeRef[64];
+        int[] nextChild = new int[64];
+        int depth = 0;
+
+        path[depth++] = tree.getRoot();
+
+        while(depth > 0){
+            NodeRef node = path[depth-1];
+            int childCount = tree.getChildCount(node);
+
+            if(childCount==0){
+                Taxon taxon = tree.getNodeTaxon(node);
+                tips.add(taxon!=null ? taxon.getId() : "");
+                if(fullLabels){
+                    out.append(safeName(tips.get(tips.size()-1)));
+                } else {
+                    out.append(tips.size());
+                }
+                appendNodeEnd(tree, node, tree.isRoot(node) ? 0 : tree.getBranchLength(node), precision, out);
+                depth--;
+                continue;
+            }
+
+            int child = nextChild[depth-1];
+            if(child < childCount){
+                out.append(child==0 ? '(' : ',');
+                nextChild[depth-1]++;
+                if(depth==path.length){
+                    NodeRef[] newPath = new NodeRef[2*depth];
+                    System.arraycopy(path, 0, newPath, 0, depth);
+                    path = newPath;
+                    int[] newNextChild = new int[2*depth];
+                    System.arraycopy(nextChild, 0, newNextChild, 0, depth);
+                    nextChild = newNextChild;
+                }
+                path[depth] = tree.getChild(node, child);
+                nextChild[depth] = 0;
+                depth++;
+            } else {
+                out.append(')');
+                appendNodeEnd(tree, node, tree.isRoot(node) ? 0 : tree.getBranchLength(node), precision, out);
+                depth--;
+            }
+        }
+    }
+
+    // the same tree string as appendNewick, with runs of it written by tasks in the pool
+
+    private static void appendNewickInParallel(final Tree tree, final boolean fullLabels, final int precision,
+                                               final ArrayList<String> tips, ByteBuilder out, ForkJoinPool pool,
+                                               int minRunLength){
+        int stepCount = 2*tree.getNodeCount() - tree.getExternalNodeCount();
+        final NodeRef[] nodes = new NodeRef[stepCount];
+        final byte[] kinds = new byte[stepCount];
+        // branch lengths are read here, as FlexibleTree may work them out on first use
+        final double[] lengths = new double[stepCount];
+        int steps = 0;
+
+        NodeRef[] path = new NodeRef[64];
+        int[] nextChild = new int[64];
+        int depth = 0;
+        boolean afterSibling = false;
+
+        path[depth++] = tree.getRoot();
+
+        while(depth > 0){
+            NodeRef node = path[depth-1];
+            int childCount = tree.getChildCount(node);
+
+            if(childCount==0){
+                Taxon taxon = tree.getNodeTaxon(node);
+                tips.add(taxon!=null ? taxon.getId() : "");
+                nodes[steps] = node;
+                kinds[steps] = (byte)(TIP + (afterSibling ? AFTER_SIBLING : 0));
+                lengths[steps] = tree.isRoot(node) ? 0 : tree.getBranchLength(node);
+                steps++;
+                depth--;
+                continue;
+            }
+
+            int child = nextChild[depth-1];
+            if(child < childCount){
+                if(child==0){
+                    nodes[steps] = node;
+                    kinds[steps] = (byte)(OPEN + (afterSibling ? AFTER_SIBLING : 0));
+                    steps++;
+                }
+                afterSibling = child > 0;
+                nextChild[depth-1]++;
+                if(depth==path.length){
+                    NodeRef[] newPath = new NodeRef[2*depth];
+                    System.arraycopy(path, 0, newPath, 0, depth);
+                    path = newPath;
+                    int[] newNextChild = new int[2*depth];
+                    System.arraycopy(nextChild, 0, newNextChild, 0, depth);
+                    nextChild = newNextChild;
+                }
+                path[depth] = tree.getChild(node, child);
+                nextChild[depth] = 0;
+                depth++;
+            } else {
+                nodes[steps] = node;
+                kinds[steps] = CLOSE;
+                lengths[steps] = tree.isRoot(node) ? 0 : tree.getBranchLength(node);
+                steps++;
+                depth--;
+            }
+        }
+
+        int runCount = Math.max(1, Math.min(stepCount/minRunLength, 4*pool.getParallelism()));
+
+        ArrayList<Callable<ByteBuilder>> runs = new ArrayList<Callable<ByteBuilder>>();
+        int tipsBefore = 0;
+        for(int i=0; i<runCount; i++){
+            final int start = (int)((long)stepCount*i/runCount);
+            final int end = (int)((long)stepCount*(i+1)/runCount);
+            final int firstTip = tipsBefore;
+            for(int j=start; j<end; j++){
+                if((kinds[j] & ~AFTER_SIBLING)==TIP){
+                    tipsBefore++;
+                }
+            }
+
+            runs.add(new Callable<ByteBuilder>() {
+                public ByteBuilder call() {
+                    ByteBuilder run = new ByteBuilder(32*(end - start));
+                    int tip = firstTip;
+                    for(int j=start; j<end; j++){
+                        if((kinds[j] & AFTER_SIBLING)!=0){
+                            run.append(',');
+                        }
+                        switch(kinds[j] & ~AFTER_SIBLING){
+                            case OPEN:
+                                run.append('(');
+                                break;
+                            case TIP:
+                                tip++;
+                                if(fullLabels){
+                                    run.append(safeName(tips.get(tip-1)));
+                                } else {
+                                    run.append(tip);
+                                }
+                                appendNodeEnd(tree, nodes[j], lengths[j], precision, run);
+                                break;
+                            case CLOSE:
+                                run.append(')');
+                                appendNodeEnd(tree, nodes[j], lengths[j], precision, run);
+                                break;
+                        }
+                    }
+                    return run;
+                }
+            });
+        }
+
+        try {
+            for(Future<ByteBuilder> run : pool.invokeAll(runs)){
+                out.append(run.get());
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing a tree", e);
+        } catch (ExecutionException e){
+            throw new RuntimeException("Failed to write a tree: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // a node's attributes and, unless it is the root, its branch length
+
+    private static void appendNodeEnd(Tree tree, NodeRef node, double length, int precision, ByteBuilder out){
+        appendAttributes(tree.getNodeAttributeNames(node), tree, node, precision, out);
+        if(!tree.isRoot(node)){
+            out.append(':').append(length, precision);
+        }
+    }
+
+    // node attributes if node is not null, otherwise the tree's own
+
+    private static void appendAttributes(Iterator names, Tree tree, NodeRef node, int precision,
+                                         ByteBuilder out){
+        if(names==null || !names.hasNext()){
+            return;
+        }
+
+        int start = out.length();
+        out.append("[&");
+        boolean first = true;
+        while(names.hasNext()){
+            String name = (String)names.next();
+            Object value = node!=null ? tree.getNodeAttribute(node, name) : tree.getAttribute(name);
+            if(value==null){
+                continue;
+            }
+            if(!first){
+                out.append(',');
+            }
+            first = false;
+            out.append(name).append('=');
+            if(value instanceof Double){
+                out.append((Double)value, precision);
+            } else if(value instanceof Number || value instanceof Boolean){
+                out.append(value.toString());
+            } else {
+                out.append('"').append(value.toString().replace("\"", "\\\"")).append('"');
+            }
+        }
+        if(first){
+            out.setLength(start);
+        } else {
+            out.append(']');
+        }
+    }
+
+    // the label, quoted if it is not a plain Nexus word
+
+    private static String safeName(String label){
+        for(int i=0; i<label.length(); i++){
+            char c = label.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c!='_' && c!='.' && c!='-'){
+                return "'" + label.replace("'", "''") + "'";
+            }
+        }
+        return label.length()==0 ? "''" : label;
+    }
+
+}
@@ -0,0 +1,206 @@
+package virustreesimulator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes finished files concurrently, since on a network filesystem opening and closing each one takes far longer
+ * than writing it. The contents are prepared in memory by the caller; write() hands them to a virtual thread where
+ * the JVM can start one (Java 21 and later, or 19 and 20 with preview features enabled) and to a fixed pool of
+ * threads otherwise. At most maxOpenFiles files are
+ * open, or waiting to be, at any one time, and the contents of those waiting or being written come to at most
+ * maxQueuedBytes, so that a run of very large trees cannot fill the heap; write() blocks until both allow the file.
+ * A single file larger than maxQueuedBytes is let through on its own, once nothing else is queued.
+ * <p>
+ * Files finish in any order, but the log (if there is one) lists them in the order they were handed over, and
+ * of several failures the one reported is that of the earliest file.
+ */
+
+public class OutputFileWriter {
+
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 512L << 20;
+
+    private ExecutorService workers;
+    private boolean virtualThreads;
+    private Semaphore openFiles;
+    private long maxQueuedBytes;
+    // guarded by queueLock
+    private long queuedBytes;
+    private final Object queueLock = new Object();
+    private PrintStream log;
+
+    private long submitted;
+    private long logged;
+
+    // finished files not yet logged, by submission number
+    private TreeMap<Long, Result> finished;
+    private IOException failure;
+
+    public OutputFileWriter(int maxOpenFiles, PrintStream log){
+        this(maxOpenFiles, DEFAULT_MAX_QUEUED_BYTES, log);
+    }
+
+    public OutputFileWriter(int maxOpenFiles, long maxQueuedBytes, PrintStream log){
+        if(maxOpenFiles < 1){
+            throw new IllegalArgumentException("At least one file must be allowed open");
+        }
+        if(maxQueuedBytes < 1){
+            throw new IllegalArgumentException("At least one byte must be allowed in the queue");
+        }
+        this.openFiles = new Semaphore(maxOpenFiles);
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.log = log;
+        this.finished = new TreeMap<Long, Result>();
+        this.workers = makeVirtualExecutor();
+        this.virtualThreads = workers!=null;
+        if(workers==null){
+            workers = Executors.newFixedThreadPool(maxOpenFiles);
+        }
+    }
+
+    // true if the files are written on virtual threads, false if on a fixed pool of maxOpenFiles threads
+
+    public boolean usesVirtualThreads(){
+        return virtualThreads;
+    }
+
+    public void write(final String fileName, final byte[] contents) throws IOException{
+        checkFailure();
+
+        try {
+            reserveBytes(contents.length);
+            try {
+                openFiles.acquire();
+            } catch (InterruptedException e){
+                releaseBytes(contents.length);
+                throw e;
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to open " + fileName);
+        }
+
+        final long number;
+        synchronized (this) {
+            number = submitted++;
+        }
+
+        workers.execute(new Runnable() {
+            public void run() {
+                IOException error = null;
+                try {
+                    FileOutputStream stream = new FileOutputStream(fileName);
+                    try {
+                        stream.write(contents);
+                    } finally {
+                        stream.close();
+                    }
+                } catch (IOException e){
+                    error = new IOException("Cannot write " + fileName + ": " + e.getMessage(), e);
+                } finally {
+                    openFiles.release();
+                    releaseBytes(contents.length);
+                }
+                finish(number, new Result(fileName, error));
+            }
+        });
+    }
+
+    // the bytes handed over and not yet written
+
+    public long getQueuedBytes(){
+        synchronized (queueLock) {
+            return queuedBytes;
+        }
+    }
+
+    // waits for every file to be written, rethrowing the first failure
+
+    public void close() throws IOException{
+        workers.shutdown();
+        try {
+            while(!workers.awaitTermination(1, TimeUnit.MINUTES)){
+                // keep waiting; a slow filesystem is not an error
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for files to be written");
+        } finally {
+            workers.shutdownNow();
+        }
+        if(log!=null){
+            log.flush();
+        }
+        checkFailure();
+    }
+
+    private void reserveBytes(long length) throws InterruptedException{
+        synchronized (queueLock) {
+            while(queuedBytes > 0 && queuedBytes + length > maxQueuedBytes){
+                queueLock.wait();
+            }
+            queuedBytes += length;
+        }
+    }
+
+    private void releaseBytes(long length){
+        synchronized (queueLock) {
+            queuedBytes -= length;
+            queueLock.notifyAll();
+        }
+    }
+
+    private synchronized void finish(long number, Result result){
+        finished.put(number, result);
+
+        // log every file up to the first one still being written
+        while(!finished.isEmpty() && finished.firstKey()==logged){
+            Result earliest = finished.remove(finished.firstKey());
+            if(earliest.error!=null && failure==null){
+                failure = earliest.error;
+            }
+            if(log!=null){
+                log.println(earliest.error==null ? earliest.fileName : "FAILED " + earliest.fileName);
+            }
+            logged++;
+        }
+    }
+
+    private synchronized void checkFailure() throws IOException{
+        if(failure!=null){
+            throw failure;
+        }
+    }
+
+    // null if virtual threads cannot be used. The method is looked up by name so that this still compiles and runs
+    // on older JVMs, and is called rather than just found, since on Java 19 and 20 it exists but fails unless
+    // preview features are enabled.
+
+    private static ExecutorService makeVirtualExecutor(){
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e){
+            return null;
+        } catch (LinkageError e){
+            return null;
+        }
+    }
+
+    private static class Result {
+        private String fileName;
+        private IOException error;
+
+        private Result(String fileName, IOException error){
+            this.fileName = fileName;
+            this.error = error;
+        }
+    }
+
+}
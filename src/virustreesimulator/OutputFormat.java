@@ -0,0 +1,5 @@
+package virustreesimulator;
+
+public enum OutputFormat {
+    NEXUS, BINARY, BOTH
+}
@@ -0,0 +1,430 @@
+package virustreesimulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A transmission graph too large to hold in memory. While the input is read only an index of unit ids and who
+ * infected whom is kept; the events themselves are spilled to disk. partition() then works out the introduction
+ * each unit descends from and sorts the events into partition files, each holding whole introductions (several
+ * small ones are packed into a partition, up to maxUnits units). Each partition can then be loaded as an ordinary
+ * TransmissionGraph and simulated on its own, so memory during simulation is bounded by the largest introduction.
+ * <p>
+ * Events are replayed into each partition in the order they were added, so a partition is built exactly as the
+ * in-memory graph would have been, and any inconsistency in the input is reported when its partition is loaded.
+ */
+
+public class PartitionedTransmissionGraph implements TransmissionGraphBuilder {
+
+    private static final byte UNIT = 0;
+    private static final byte INFECTION = 1;
+    private static final byte INTRODUCTION = 2;
+    private static final byte SAMPLING = 3;
+
+    // the most partition files written at once; more partitions take more passes over the spill file
+    private static final int MAX_OPEN_PARTITIONS = 256;
+
+    private File directory;
+    private int maxUnits;
+
+    private HashMap<String, Integer> indexById;
+    private ArrayList<String> ids;
+    private int[] parent;
+    private double[] infectionTime;
+    private double[] latestEventTime;
+    private long[] sampleCount;
+
+    private File spillFile;
+    private DataOutputStream spill;
+    private long eventCount;
+
+    private int partitionCount = -1;
+    private int[] unitCounts;
+
+    public PartitionedTransmissionGraph(String directoryName, int maxUnits) throws IOException{
+        directory = new File(directoryName);
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Cannot create directory " + directoryName);
+        }
+        this.maxUnits = maxUnits;
+
+        indexById = new HashMap<String, Integer>();
+        ids = new ArrayList<String>();
+        parent = new int[1024];
+        infectionTime = new double[1024];
+        latestEventTime = new double[1024];
+        sampleCount = new long[1024];
+
+        spillFile = new File(directory, "events.spill");
+        spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16));
+    }
+
+    public void addUnit(String id){
+        getOrAddIndex(id);
+    }
+
+    public boolean hasUnit(String id){
+        checkReading();
+        return indexById.containsKey(id);
+    }
+
+    public boolean isInfected(String id){
+        checkReading();
+        Integer index = indexById.get(id);
+        return index!=null && !Double.isNaN(infectionTime[index]);
+    }
+
+    public void addInfection(String infectorId, String infecteeId, double time){
+        int infector = getDefinedIndex(infectorId);
+        int infectee = getOrAddIndex(infecteeId);
+
+        parent[infectee] = infector;
+        infectionTime[infectee] = time;
+        latestEventTime[infector] = Math.max(latestEventTime[infector], time);
+
+        writeEvent(INFECTION, infector, infectee, time, 1);
+    }
+
+    public void addIntroduction(String id, double time){
+        int index = getOrAddIndex(id);
+
+        infectionTime[index] = time;
+
+        writeEvent(INTRODUCTION, index, -1, time, 1);
+    }
+
+    public void addSampling(String id, double time, int instances){
+        int index = getDefinedIndex(id);
+
+        latestEventTime[index] = Math.max(latestEventTime[index], time);
+        sampleCount[index] += instances;
+
+        writeEvent(SAMPLING, index, -1, time, instances);
+    }
+
+    public double getLongestInfection(){
+        checkReading();
+        double longest = 0;
+        for(int i=0; i<ids.size(); i++){
+            if(!Double.isNaN(infectionTime[i]) && latestEventTime[i] > Double.NEGATIVE_INFINITY){
+                longest = Math.max(longest, latestEventTime[i] - infectionTime[i]);
+            }
+        }
+        return longest;
+    }
+
+    // call once all events have been added; the id index is discarded afterwards
+
+    public void partition() throws IOException{
+        partition(1, 1);
+    }
+
+    // as above, but keeping only the introductions that Shards assigns to this shard (counted from 1). The
+    // assignment is made over all the introductions, before they are split into partitions, so it is the same as
+    // for the whole graph in memory.
+
+    public void partition(int shard, int shardCount) throws IOException{
+        checkReading();
+        spill.close();
+        spill = null;
+
+        int unitCount = ids.size();
+        int[] root = findRoots(unitCount);
+
+        boolean[] kept = shardCount > 1 ? findShard(root, shard, shardCount) : null;
+
+        // pack introductions into partitions in the order they were first seen
+
+        int[] cladeSize = new int[unitCount];
+        for(int i=0; i<unitCount; i++){
+            cladeSize[root[i]]++;
+        }
+
+        int[] partitionOfRoot = new int[unitCount];
+        int[] counts = new int[Math.max(1, unitCount)];
+        int current = 0;
+        for(int i=0; i<unitCount; i++){
+            if(root[i]==i && (kept==null || kept[i])){
+                if(counts[current] > 0 && counts[current] + cladeSize[i] > maxUnits){
+                    current++;
+                }
+                partitionOfRoot[i] = current;
+                counts[current] += cladeSize[i];
+            }
+        }
+
+        // a shard may have no introductions at all
+        partitionCount = counts[current]==0 ? current : current+1;
+        unitCounts = Arrays.copyOf(counts, partitionCount);
+
+        int[] partitionOfUnit = new int[unitCount];
+        for(int i=0; i<unitCount; i++){
+            partitionOfUnit[i] = kept==null || kept[root[i]] ? partitionOfRoot[root[i]] : -1;
+        }
+
+        String[] idArray = ids.toArray(new String[unitCount]);
+
+        indexById = null;
+        ids = null;
+        parent = null;
+        sampleCount = null;
+        root = null;
+
+        for(int first=0; first<partitionCount; first+=MAX_OPEN_PARTITIONS){
+            distribute(idArray, partitionOfUnit, first, Math.min(partitionCount, first+MAX_OPEN_PARTITIONS));
+        }
+
+        if(!spillFile.delete()){
+            throw new IOException("Cannot delete " + spillFile);
+        }
+    }
+
+    public int getPartitionCount(){
+        if(partitionCount < 0){
+            throw new IllegalStateException("The graph has not been partitioned");
+        }
+        return partitionCount;
+    }
+
+    public int getUnitCount(int partition){
+        getPartitionCount();
+        return unitCounts[partition];
+    }
+
+    // reads one partition back into memory, and deletes its file
+
+    public TransmissionGraph loadPartition(int partition) throws IOException{
+        getPartitionCount();
+
+        File file = getPartitionFile(partition);
+        TransmissionGraph graph = new TransmissionGraph();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            while(true){
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e){
+                    break;
+                }
+                switch(type){
+                    case UNIT: {
+                        graph.addUnit(in.readUTF());
+                        break;
+                    }
+                    case INFECTION: {
+                        String infectorId = in.readUTF();
+                        String infecteeId = in.readUTF();
+                        graph.addInfection(infectorId, infecteeId, in.readDouble());
+                        break;
+                    }
+                    case INTRODUCTION: {
+                        String id = in.readUTF();
+                        graph.addIntroduction(id, in.readDouble());
+                        break;
+                    }
+                    case SAMPLING: {
+                        String id = in.readUTF();
+                        double time = in.readDouble();
+                        graph.addSampling(id, time, in.readInt());
+                        break;
+                    }
+                    default:
+                        throw new IOException("Corrupt partition file " + file);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        if(!file.delete()){
+            throw new IOException("Cannot delete " + file);
+        }
+
+        return graph;
+    }
+
+    private void checkReading(){
+        if(spill==null){
+            throw new IllegalStateException("The graph has already been partitioned");
+        }
+    }
+
+    private int getOrAddIndex(String id){
+        checkReading();
+        Integer index = indexById.get(id);
+        if(index!=null){
+            return index;
+        }
+
+        int newIndex = ids.size();
+        if(newIndex==parent.length){
+            int newLength = parent.length*2;
+            parent = Arrays.copyOf(parent, newLength);
+            infectionTime = Arrays.copyOf(infectionTime, newLength);
+            latestEventTime = Arrays.copyOf(latestEventTime, newLength);
+            sampleCount = Arrays.copyOf(sampleCount, newLength);
+        }
+        parent[newIndex] = -1;
+        infectionTime[newIndex] = Double.NaN;
+        latestEventTime[newIndex] = Double.NEGATIVE_INFINITY;
+
+        ids.add(id);
+        indexById.put(id, newIndex);
+
+        writeEvent(UNIT, newIndex, -1, 0, 0);
+
+        return newIndex;
+    }
+
+    private int getDefinedIndex(String id){
+        checkReading();
+        Integer index = indexById.get(id);
+        if(index==null){
+            throw new RuntimeException("Unit " + id + " not previously defined");
+        }
+        return index;
+    }
+
+    private void writeEvent(byte type, int unit, int otherUnit, double time, int instances){
+        try {
+            spill.writeByte(type);
+            spill.writeInt(unit);
+            spill.writeInt(otherUnit);
+            spill.writeDouble(time);
+            spill.writeInt(instances);
+        } catch (IOException e){
+            throw new RuntimeException("Cannot write to " + spillFile, e);
+        }
+        eventCount++;
+    }
+
+    // the introduction (unit without an infector) that each unit descends from, compressing paths as it goes
+
+    private int[] findRoots(int unitCount){
+        int[] root = new int[unitCount];
+        Arrays.fill(root, -1);
+
+        int[] path = new int[16];
+
+        for(int i=0; i<unitCount; i++){
+            int pathLength = 0;
+            int unit = i;
+            while(root[unit]==-1 && parent[unit]!=-1){
+                if(pathLength==path.length){
+                    path = Arrays.copyOf(path, path.length*2);
+                }
+                path[pathLength++] = unit;
+                if(pathLength > unitCount){
+                    throw new RuntimeException("The transmission tree contains a cycle through " + ids.get(i));
+                }
+                unit = parent[unit];
+            }
+            int found = root[unit]==-1 ? unit : root[unit];
+            root[unit] = found;
+            for(int j=0; j<pathLength; j++){
+                root[path[j]] = found;
+            }
+        }
+
+        return root;
+    }
+
+    // whether each introduction is in this shard. As in VirusTreeSimulator, only introductions with events of their
+    // own are assigned; the rest give no trees and are left out.
+
+    private boolean[] findShard(int[] root, int shard, int shardCount){
+        int unitCount = root.length;
+        long[] cladeSamples = new long[unitCount];
+        for(int i=0; i<unitCount; i++){
+            cladeSamples[root[i]] += sampleCount[i];
+        }
+
+        ArrayList<Integer> introductions = new ArrayList<Integer>();
+        for(int i=0; i<unitCount; i++){
+            if(root[i]==i && latestEventTime[i] > Double.NEGATIVE_INFINITY){
+                introductions.add(i);
+            }
+        }
+
+        String[] introductionIds = new String[introductions.size()];
+        long[] weights = new long[introductions.size()];
+        for(int i=0; i<introductionIds.length; i++){
+            introductionIds[i] = ids.get(introductions.get(i));
+            weights[i] = cladeSamples[introductions.get(i)];
+        }
+
+        int[] shards = Shards.assign(introductionIds, weights, shardCount);
+
+        boolean[] kept = new boolean[unitCount];
+        for(int i=0; i<introductionIds.length; i++){
+            kept[introductions.get(i)] = shards[i]==shard;
+        }
+        return kept;
+    }
+
+    // copies the events of partitions first to last-1 from the spill file into their own files
+
+    private void distribute(String[] idArray, int[] partitionOfUnit, int first, int last) throws IOException{
+        DataOutputStream[] outs = new DataOutputStream[last - first];
+        for(int i=first; i<last; i++){
+            outs[i-first] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getPartitionFile(i)),
+                    1 << 13));
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 1 << 16));
+        try {
+            for(long e=0; e<eventCount; e++){
+                byte type = in.readByte();
+                int unit = in.readInt();
+                int otherUnit = in.readInt();
+                double time = in.readDouble();
+                int instances = in.readInt();
+
+                // an infection belongs with its infectee, which is in the same partition as the infector
+                int partition = partitionOfUnit[unit];
+                if(partition < first || partition >= last){
+                    continue;
+                }
+
+                DataOutputStream out = outs[partition-first];
+                out.writeByte(type);
+                out.writeUTF(idArray[unit]);
+                switch(type){
+                    case INFECTION:
+                        out.writeUTF(idArray[otherUnit]);
+                        out.writeDouble(time);
+                        break;
+                    case INTRODUCTION:
+                        out.writeDouble(time);
+                        break;
+                    case SAMPLING:
+                        out.writeDouble(time);
+                        out.writeInt(instances);
+                        break;
+                }
+            }
+        } finally {
+            in.close();
+            for(DataOutputStream out : outs){
+                out.close();
+            }
+        }
+    }
+
+    private File getPartitionFile(int partition){
+        return new File(directory, "partition_" + partition + ".bin");
+    }
+
+}
@@ -0,0 +1,31 @@
+package virustreesimulator;
+
+/**
+ * Derives independent random number seeds from a master seed and a label (e.g. a host id), so that the draws made
+ * for one host do not depend on how many draws were made before it.
+ */
+
+public class Seeds {
+
+    private Seeds(){
+    }
+
+    public static long derive(long masterSeed, String label){
+        // FNV-1a over the label, then a SplitMix64 finaliser over the combination
+
+        long hash = 0xcbf29ce484222325L;
+        for(int i=0; i<label.length(); i++){
+            hash ^= label.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(masterSeed ^ mix(hash));
+    }
+
+    private static long mix(long z){
+        z += 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
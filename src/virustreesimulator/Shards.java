@@ -0,0 +1,116 @@
+package virustreesimulator;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Splits the introductions of a transmission graph between shards, so that separate processes (or machines) can
+ * each simulate their share. The split depends only on the graph: introductions are weighted by the number of
+ * samples among their descendants and dealt out largest first, each to the shard with the least weight so far
+ * (ties broken by id and by shard number), so every shard computes the same assignment independently.
+ */
+
+public class Shards {
+
+    private Shards(){
+    }
+
+    // "i/n", with i counted from 1
+
+    public static int[] parse(String shard){
+        String[] parts = shard.split("/");
+        int index;
+        int count;
+        try {
+            if(parts.length!=2){
+                throw new NumberFormatException();
+            }
+            index = Integer.parseInt(parts[0].trim());
+            count = Integer.parseInt(parts[1].trim());
+        } catch (NumberFormatException e){
+            throw new RuntimeException("A shard should be given as i/n, not " + shard);
+        }
+        if(count < 1 || index < 1 || index > count){
+            throw new RuntimeException("Shard " + shard + " does not exist; i must be between 1 and n");
+        }
+        return new int[]{index, count};
+    }
+
+    // the shard (from 1) for each introduction
+
+    public static IdentityHashMap<InfectedUnit, Integer> assign(List<InfectedUnit> introductions, int shardCount){
+        String[] ids = new String[introductions.size()];
+        long[] weights = new long[introductions.size()];
+        for(int i=0; i<ids.length; i++){
+            ids[i] = introductions.get(i).id;
+            weights[i] = getSampleCount(introductions.get(i));
+        }
+
+        int[] shards = assign(ids, weights, shardCount);
+
+        IdentityHashMap<InfectedUnit, Integer> out = new IdentityHashMap<InfectedUnit, Integer>();
+        for(int i=0; i<ids.length; i++){
+            out.put(introductions.get(i), shards[i]);
+        }
+        return out;
+    }
+
+    // the shard (from 1) for each introduction, given its id and the number of samples in its clade; this is all
+    // the assignment depends on, so a graph that is never held in memory as a whole gets the same one
+
+    public static int[] assign(final String[] ids, final long[] weights, int shardCount){
+        Integer[] ordered = new Integer[ids.length];
+        for(int i=0; i<ids.length; i++){
+            ordered[i] = i;
+        }
+
+        Arrays.sort(ordered, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                int result = Long.compare(weights[i2], weights[i1]);
+                if(result==0){
+                    result = ids[i1].compareTo(ids[i2]);
+                }
+                return result;
+            }
+        });
+
+        long[] load = new long[shardCount];
+        int[] out = new int[ids.length];
+
+        for(int introduction : ordered){
+            int lightest = 0;
+            for(int i=1; i<shardCount; i++){
+                if(load[i] < load[lightest]){
+                    lightest = i;
+                }
+            }
+            load[lightest] += weights[introduction];
+            out[introduction] = lightest+1;
+        }
+
+        return out;
+    }
+
+    // the number of samples taken from this unit and everyone it infected, directly or indirectly
+
+    public static long getSampleCount(InfectedUnit unit){
+        long count = 0;
+        ArrayDeque<InfectedUnit> stack = new ArrayDeque<InfectedUnit>();
+        stack.push(unit);
+        while(!stack.isEmpty()){
+            InfectedUnit current = stack.pop();
+            for(Event event : current.childEvents){
+                if(event.type == EventType.SAMPLE){
+                    count += event.instances;
+                } else {
+                    stack.push(event.infectee);
+                }
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,209 @@
+package virustreesimulator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * What was simulated for each introduction (its weight in samples, the trees and tips produced, the probability of
+ * complete coalescence and the time taken), written as a CSV file. Shards each write their own file, and main()
+ * merges them into one, checking that every shard is present exactly once.
+ * <p>
+ * Usage: SimulationMetrics <merged-file-name> <shard-file-name>...
+ */
+
+public class SimulationMetrics {
+
+    private static final String HEADER = "Introduction,Shard,Samples,Trees,Tips,CoalescentProbability,Milliseconds";
+
+    private int shard;
+    private int shardCount;
+    private ArrayList<Row> rows;
+
+    public SimulationMetrics(int shard, int shardCount){
+        this.shard = shard;
+        this.shardCount = shardCount;
+        rows = new ArrayList<Row>();
+    }
+
+    public synchronized void record(String introduction, long samples, int trees, int tips,
+                                    double coalescentProbability, long nanoseconds){
+        rows.add(new Row(introduction, shard, samples, trees, tips, coalescentProbability,
+                nanoseconds/1000000.0));
+    }
+
+    public synchronized void write(String fileName) throws IOException{
+        PrintStream out = new PrintStream(fileName);
+        try {
+            out.println("# shard " + shard + "/" + shardCount);
+            out.println(HEADER);
+            for(Row row : rows){
+                out.println(row.introduction + "," + row.shard + "," + row.samples + "," + row.trees + "," +
+                        row.tips + "," + row.coalescentProbability + "," + row.milliseconds);
+            }
+        } finally {
+            out.close();
+        }
+        if(out.checkError()){
+            throw new IOException("Cannot write " + fileName);
+        }
+    }
+
+    public static SimulationMetrics read(String fileName) throws IOException{
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String first = reader.readLine();
+            if(first==null || !first.startsWith("# shard ")){
+                throw new IOException(fileName + " is not a metrics file");
+            }
+            int[] shard = Shards.parse(first.substring("# shard ".length()));
+            SimulationMetrics metrics = new SimulationMetrics(shard[0], shard[1]);
+
+            if(!HEADER.equals(reader.readLine())){
+                throw new IOException(fileName + " is not a metrics file");
+            }
+
+            CsvTokenizer tokenizer = new CsvTokenizer(reader);
+            while(tokenizer.nextRow()){
+                metrics.rows.add(new Row(tokenizer.getString(0), tokenizer.getInt(1), Long.parseLong(
+                        tokenizer.getString(2)), tokenizer.getInt(3), tokenizer.getInt(4), tokenizer.getDouble(5),
+                        tokenizer.getDouble(6)));
+            }
+            return metrics;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // all shards of one run combined, ordered by shard and then introduction; the result is a complete run (shard
+    // 1/1) whose rows keep the shard they came from
+
+    public static SimulationMetrics merge(ArrayList<SimulationMetrics> shards){
+        if(shards.size()==0){
+            throw new RuntimeException("No shards to merge");
+        }
+
+        int shardCount = shards.get(0).shardCount;
+        boolean[] seen = new boolean[shardCount+1];
+        HashSet<String> introductions = new HashSet<String>();
+
+        SimulationMetrics out = new SimulationMetrics(1, 1);
+
+        for(SimulationMetrics metrics : shards){
+            if(metrics.shardCount!=shardCount){
+                throw new RuntimeException("Shards of runs with " + shardCount + " and " + metrics.shardCount +
+                        " shards cannot be merged");
+            }
+            if(seen[metrics.shard]){
+                throw new RuntimeException("Shard " + metrics.shard + "/" + shardCount + " appears twice");
+            }
+            seen[metrics.shard] = true;
+
+            for(Row row : metrics.rows){
+                if(!introductions.add(row.introduction)){
+                    throw new RuntimeException("Introduction " + row.introduction + " was simulated in more " +
+                            "than one shard");
+                }
+                out.rows.add(row);
+            }
+        }
+
+        for(int i=1; i<=shardCount; i++){
+            if(!seen[i]){
+                throw new RuntimeException("Shard " + i + "/" + shardCount + " is missing");
+            }
+        }
+
+        Collections.sort(out.rows, new Comparator<Row>() {
+            public int compare(Row r1, Row r2) {
+                int result = r1.shard - r2.shard;
+                if(result==0){
+                    result = r1.introduction.compareTo(r2.introduction);
+                }
+                return result;
+            }
+        });
+
+        return out;
+    }
+
+    public synchronized void printSummary(PrintStream stream){
+        int maxShard = 0;
+        for(Row row : rows){
+            maxShard = Math.max(maxShard, row.shard);
+        }
+
+        long[] samples = new long[maxShard+1];
+        double[] milliseconds = new double[maxShard+1];
+        int trees = 0;
+        long tips = 0;
+
+        for(Row row : rows){
+            samples[row.shard] += row.samples;
+            milliseconds[row.shard] += row.milliseconds;
+            trees += row.trees;
+            tips += row.tips;
+        }
+
+        stream.println(rows.size() + " introductions, " + trees + " trees, " + tips + " tips");
+
+        double totalTime = 0;
+        double longestTime = 0;
+        for(int i=1; i<=maxShard; i++){
+            stream.println("Shard " + i + ": " + samples[i] + " samples, " + milliseconds[i] + " ms");
+            totalTime += milliseconds[i];
+            longestTime = Math.max(longestTime, milliseconds[i]);
+        }
+        if(maxShard > 1 && longestTime > 0){
+            stream.println("Slowest shard took " + (longestTime/(totalTime/maxShard)) + " times the mean");
+        }
+    }
+
+    private static class Row {
+        private String introduction;
+        private int shard;
+        private long samples;
+        private int trees;
+        private int tips;
+        private double coalescentProbability;
+        private double milliseconds;
+
+        private Row(String introduction, int shard, long samples, int trees, int tips, double coalescentProbability,
+                    double milliseconds){
+            this.introduction = introduction;
+            this.shard = shard;
+            this.samples = samples;
+            this.trees = trees;
+            this.tips = tips;
+            this.coalescentProbability = coalescentProbability;
+            this.milliseconds = milliseconds;
+        }
+    }
+
+    public static void main(String[] args){
+        if(args.length < 2){
+            System.out.println("Usage: SimulationMetrics <merged-file-name> <shard-file-name>...");
+            System.exit(1);
+        }
+
+        try {
+            ArrayList<SimulationMetrics> shards = new ArrayList<SimulationMetrics>();
+            for(int i=1; i<args.length; i++){
+                shards.add(read(args[i]));
+            }
+
+            SimulationMetrics merged = merge(shards);
+            merged.write(args[0]);
+            merged.printSummary(System.out);
+        } catch (IOException e){
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
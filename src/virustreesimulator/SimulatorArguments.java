@@ -0,0 +1,519 @@
+package virustreesimulator;
+
+import dr.app.util.Arguments;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.coalescent.ExponentialGrowth;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.util.Units;
+import dr.evomodel.epidemiology.LogisticGrowthN0;
+import dr.math.MathUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * The command line options shared by the simulators for each input format, and the code that turns them into a
+ * configured VirusTreeSimulator.
+ */
+
+public class SimulatorArguments {
+
+    protected static PrintStream progressStream = System.out;
+
+    private enum ModelType{CONSTANT, EXPONENTIAL, LOGISTIC}
+
+    public static final String HELP = "help";
+
+    public static final String DEMOGRAPHIC_MODEL = "demoModel";
+
+    public static final String[] demographics = {"Constant", "Exponential", "Logistic"};
+
+    public static final String STARTING_POPULATION_SIZE = "N0";
+    public static final String GROWTH_RATE = "growthRate";
+    public static final String T50 = "t50";
+    public static final String SEED = "seed";
+    public static final String EXPORT_THREADS = "exportThreads";
+    public static final String EXPORT_QUEUE = "exportQueue";
+    public static final String OUTPUT_FORMAT = "outputFormat";
+    public static final String INCREMENTAL = "incremental";
+    public static final String PROFILE_CACHE = "profileCache";
+    public static final String TABULATE = "tabulate";
+    public static final String TABULATION_TOLERANCE = "tabulationTolerance";
+    public static final String OUT_OF_CORE = "outOfCore";
+    public static final String PARTITION_SIZE = "partitionSize";
+    public static final String SHARD = "shard";
+    public static final String METRICS = "metrics";
+    public static final String INTRODUCTIONS = "introductions";
+    public static final String HOSTS = "hosts";
+    public static final String THREADS = "threads";
+    public static final String MAX_OPEN_FILES = "maxOpenFiles";
+    public static final String MAX_QUEUED_MB = "maxQueuedMB";
+    public static final String FILE_LOG = "fileLog";
+    public static final String IMPORTANCE_WEIGHTS = "importanceWeights";
+    public static final String APPROXIMATE = "approximate";
+
+    public static final String[] outputFormats = {"Nexus", "Binary", "Both"};
+
+    public static final String OUTPUT_TREES = "outputTrees";
+
+    public static final String ENGINE = "engine";
+
+    public static final String[] engines = {"Treelet", "EventDriven"};
+
+    public static final String[] treeSelections = {"Detailed", "Simple", "Both"};
+
+    public static final String NEXUS_LABELS = "nexusLabels";
+    public static final String PRECISION = "precision";
+    public static final String WRITER_THREADS = "writerThreads";
+    public static final String SUBTREES = "subtrees";
+
+    public static final String[] nexusLabelChoices = {"Full", "Translate", "Table"};
+
+    private SimulatorArguments(){
+    }
+
+    // the shared options, followed by any particular to one input format
+
+    public static Arguments.Option[] getOptions(Arguments.Option... extraOptions){
+        Arguments.Option[] shared = new Arguments.Option[]{
+                new Arguments.StringOption(DEMOGRAPHIC_MODEL, demographics, false, "The type of within-host" +
+                        " demographic function to use, default = constant"),
+                new Arguments.RealOption(STARTING_POPULATION_SIZE,"The effective population size at time zero" +
+                        " (used in all models), default = 1"),
+                new Arguments.RealOption(GROWTH_RATE,"The effective population size growth rate (used in" +
+                        " exponential and logistic models), default = 0"),
+                new Arguments.RealOption(T50,"The time point, relative to the time of infection in backwards " +
+                        "time, at which the population is equal to half its final asymptotic value, in the " +
+                        "logistic model default = 0"),
+                new Arguments.LongOption(SEED, "The random number seed"),
+                new Arguments.IntegerOption(EXPORT_THREADS, "The number of threads simplifying and writing " +
+                        "finished trees while later ones are simulated, default = 1"),
+                new Arguments.IntegerOption(EXPORT_QUEUE, "The maximum number of finished trees waiting to " +
+                        "be written before simulation pauses, default = twice the number of export threads"),
+                new Arguments.StringOption(OUTPUT_FORMAT, outputFormats, false, "Whether to write trees as " +
+                        "Nexus (.nex), in the binary format read by BinaryTreeReader (.vtb), or both, " +
+                        "default = Nexus"),
+                new Arguments.StringOption(OUTPUT_TREES, treeSelections, false, "Whether to write the detailed " +
+                        "trees, with transmission nodes, the simple trees, or both; simple trees alone are made " +
+                        "without the transmission nodes at all, default = both"),
+                new Arguments.StringOption(NEXUS_LABELS, nexusLabelChoices, false, "Whether Nexus tips are " +
+                        "labelled in full, by number with a TRANSLATE block, or by number with the labels in a " +
+                        "_labels.csv file beside each tree file, default = full"),
+                new Arguments.IntegerOption(PRECISION, "The significant digits of Nexus branch lengths, from 1 to " +
+                        ByteBuilder.MAX_PRECISION + ", default = as many as are needed to be exact"),
+                new Arguments.IntegerOption(WRITER_THREADS, "The threads each large Nexus tree is written on, " +
+                        "in pieces joined in order, when the labels are not full or there is a -" + PRECISION +
+                        "; the files are the same whatever the number, default = 1"),
+                new Arguments.StringOption(SUBTREES, "file-name", "Also write the subtree of each tree induced by " +
+                        "each set of tips in this CSV file (header Subset,Tip, a row per tip), as " +
+                        "_<subset>_induced"),
+                new Arguments.StringOption(INCREMENTAL, "cache-file", "Reuse the treelets of hosts whose " +
+                        "events are unchanged since the run that wrote this file, and update it (needs -seed, " +
+                        "as treelets are only reused between runs with the same seed)"),
+                new Arguments.IntegerOption(PROFILE_CACHE, "Cache the coalescent intensities at the tip " +
+                        "times of treelets, keyed by those times relative to infection, holding at most this " +
+                        "many values (the inverse intensity at each coalescence is not cached); off by default"),
+                new Arguments.IntegerOption(TABULATE, "Replace the demographic function by a lookup table " +
+                        "with (at least) this many intervals over the longest infection; off by default"),
+                new Arguments.RealOption(TABULATION_TOLERANCE, "The largest error in the tabulated " +
+                        "intensity (and its inverse) at the points checked in each interval, relative where the " +
+                        "intensity exceeds one, default = 1E-8"),
+                new Arguments.StringOption(OUT_OF_CORE, "directory", "Spill the transmission tree to this " +
+                        "directory, split by introduction, and simulate one partition at a time"),
+                new Arguments.IntegerOption(PARTITION_SIZE, "In out-of-core mode, the most units in a partition " +
+                        "(larger introductions have one to themselves), default = 100000"),
+                new Arguments.StringOption(SHARD, "i/n", "Simulate only the introductions assigned to shard i of " +
+                        "n; the shards of a run with the same seed together give the same trees as one run"),
+                new Arguments.StringOption(METRICS, "file-name", "Write the samples, trees, tips and time taken " +
+                        "for each introduction to this file (merge the files of a sharded run with " +
+                        "SimulationMetrics)"),
+                new Arguments.StringOption(INTRODUCTIONS, "id,id...", "Only simulate the introductions with " +
+                        "these ids (as in the output file names); with the same seed their trees are the same as " +
+                        "in a full run"),
+                new Arguments.StringOption(HOSTS, "id,id...", "Only write the trees of these hosts' samples, " +
+                        "simulating just the hosts on their chains of infection back to their introductions " +
+                        "(treelet engine; not with -" + OUT_OF_CORE + ")"),
+                new Arguments.StringOption(ENGINE, engines, false, "Simulate a treelet per host and graft them " +
+                        "together, or each introduction's whole genealogy in one event-driven sweep backwards in " +
+                        "time (which does not use -" + INCREMENTAL + " or -" + PROFILE_CACHE + "), default = " +
+                        "treelet"),
+                new Arguments.IntegerOption(THREADS, "The number of threads simulating introductions, largest " +
+                        "predicted cost first, with large clades split between threads; default = 1"),
+                new Arguments.IntegerOption(MAX_OPEN_FILES, "The most output files written at once (on virtual " +
+                        "threads where the JVM can start them, otherwise on a pool of this many threads), " +
+                        "default = 64"),
+                new Arguments.IntegerOption(MAX_QUEUED_MB, "The most megabytes of finished output files held in " +
+                        "memory waiting to be written, whatever their number, default = " +
+                        (OutputFileWriter.DEFAULT_MAX_QUEUED_BYTES >> 20)),
+                new Arguments.StringOption(FILE_LOG, "file-name", "List each output file in this file once it is " +
+                        "written, in the order the trees were finished"),
+                new Arguments.StringOption(IMPORTANCE_WEIGHTS, "file-name", "Draw each host's last coalescences " +
+                        "from before its infection instead of retrying until all lineages coalesce, and write the " +
+                        "log importance weight of each introduction's trees to this file (needs forced " +
+                        "coalescence; does not use -" + INCREMENTAL + ")"),
+                new Arguments.RealOption(APPROXIMATE, "Give hosts whose estimated error (of the total variation " +
+                        "distance; not a bound when coalescence is forced) is at most this tolerance a star-like " +
+                        "approximation of their coalescent, and report them (treelet engine only; does not use -" +
+                        INCREMENTAL + ")")
+        };
+
+        Arguments.Option[] out = new Arguments.Option[shared.length + extraOptions.length];
+        System.arraycopy(shared, 0, out, 0, shared.length);
+        System.arraycopy(extraOptions, 0, out, shared.length, extraOptions.length);
+        return out;
+    }
+
+    public static DemographicFunction makeDemographicFunction(Arguments arguments){
+        ModelType model = ModelType.CONSTANT;
+        double startNe = 1;
+        double growthRate = 0;
+        double t50 = 0;
+
+        if (arguments.hasOption(DEMOGRAPHIC_MODEL)) {
+            String modelString = arguments.getStringOption(DEMOGRAPHIC_MODEL);
+            if(modelString.toLowerCase().startsWith("c")){
+                model = ModelType.CONSTANT;
+            } else if(modelString.toLowerCase().startsWith("e")){
+                model = ModelType.EXPONENTIAL;
+            } else if(modelString.toLowerCase().startsWith("l")){
+                model = ModelType.LOGISTIC;
+            } else {
+                progressStream.print("Unrecognised demographic model type");
+                System.exit(1);
+            }
+        }
+
+        if(arguments.hasOption(STARTING_POPULATION_SIZE)){
+            startNe = arguments.getRealOption(STARTING_POPULATION_SIZE);
+        }
+
+        if(arguments.hasOption(GROWTH_RATE) && model!=ModelType.CONSTANT){
+            growthRate = arguments.getRealOption(GROWTH_RATE);
+        }
+
+        if(arguments.hasOption(T50) && model==ModelType.LOGISTIC){
+            t50 = arguments.getRealOption(T50);
+        }
+
+        DemographicFunction demoFunction = null;
+
+        switch(model){
+            case CONSTANT: {
+                demoFunction = new ConstantPopulation(Units.Type.YEARS);
+                ((ConstantPopulation)demoFunction).setN0(startNe);
+                break;
+            }
+            case EXPONENTIAL: {
+                demoFunction = new ExponentialGrowth(Units.Type.YEARS);
+                ((ExponentialGrowth)demoFunction).setN0(startNe);
+                ((ExponentialGrowth)demoFunction).setGrowthRate(growthRate);
+                break;
+            }
+            case LOGISTIC: {
+                demoFunction = new LogisticGrowthN0(Units.Type.YEARS);
+                ((LogisticGrowthN0)demoFunction).setN0(startNe);
+                ((LogisticGrowthN0)demoFunction).setGrowthRate(growthRate);
+                ((LogisticGrowthN0)demoFunction).setT50(t50);
+                break;
+            }
+        }
+
+        return demoFunction;
+    }
+
+    public static OutputFormat getOutputFormat(Arguments arguments){
+        OutputFormat outputFormat = OutputFormat.NEXUS;
+
+        if (arguments.hasOption(OUTPUT_FORMAT)) {
+            String formatString = arguments.getStringOption(OUTPUT_FORMAT);
+            if(formatString.toLowerCase().startsWith("n")){
+                outputFormat = OutputFormat.NEXUS;
+            } else if(formatString.toLowerCase().startsWith("bi")){
+                outputFormat = OutputFormat.BINARY;
+            } else if(formatString.toLowerCase().startsWith("bo")){
+                outputFormat = OutputFormat.BOTH;
+            } else {
+                progressStream.print("Unrecognised output format");
+                System.exit(1);
+            }
+        }
+
+        return outputFormat;
+    }
+
+    public static NexusLabels getNexusLabels(Arguments arguments){
+        NexusLabels nexusLabels = NexusLabels.FULL;
+
+        if (arguments.hasOption(NEXUS_LABELS)) {
+            String labelsString = arguments.getStringOption(NEXUS_LABELS);
+            if(labelsString.toLowerCase().startsWith("f")){
+                nexusLabels = NexusLabels.FULL;
+            } else if(labelsString.toLowerCase().startsWith("tr")){
+                nexusLabels = NexusLabels.TRANSLATE;
+            } else if(labelsString.toLowerCase().startsWith("ta")){
+                nexusLabels = NexusLabels.TABLE;
+            } else {
+                progressStream.print("Unrecognised Nexus labels");
+                System.exit(1);
+            }
+        }
+
+        return nexusLabels;
+    }
+
+    public static TreeSelection getTreeSelection(Arguments arguments){
+        TreeSelection treeSelection = TreeSelection.BOTH;
+
+        if (arguments.hasOption(OUTPUT_TREES)) {
+            String selectionString = arguments.getStringOption(OUTPUT_TREES);
+            if(selectionString.toLowerCase().startsWith("d")){
+                treeSelection = TreeSelection.DETAILED;
+            } else if(selectionString.toLowerCase().startsWith("s")){
+                treeSelection = TreeSelection.SIMPLE;
+            } else if(selectionString.toLowerCase().startsWith("b")){
+                treeSelection = TreeSelection.BOTH;
+            } else {
+                progressStream.print("Unrecognised tree selection");
+                System.exit(1);
+            }
+        }
+
+        return treeSelection;
+    }
+
+    // an in-memory graph, or one spilled to disk in out-of-core mode
+
+    public static TransmissionGraphBuilder makeGraphBuilder(Arguments arguments){
+        if(arguments.hasOption(OUT_OF_CORE)){
+            int partitionSize = 100000;
+            if(arguments.hasOption(PARTITION_SIZE)){
+                partitionSize = arguments.getIntegerOption(PARTITION_SIZE);
+            }
+            try {
+                return new PartitionedTransmissionGraph(arguments.getStringOption(OUT_OF_CORE), partitionSize);
+            } catch (IOException e){
+                progressStream.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        return new TransmissionGraph();
+    }
+
+    // seeds the random number generator and sets up the simulator; the graph is needed to size the lookup table
+
+    public static VirusTreeSimulator makeSimulator(Arguments arguments, DemographicFunction demoFunction,
+                                                   TransmissionGraphBuilder graph){
+        if(arguments.hasOption(SEED)){
+            MathUtils.setSeed(arguments.getLongOption(SEED));
+        }
+
+        if(arguments.hasOption(TABULATE)){
+            double tolerance = 1E-8;
+            if(arguments.hasOption(TABULATION_TOLERANCE)){
+                tolerance = arguments.getRealOption(TABULATION_TOLERANCE);
+            }
+            double longest = graph.getLongestInfection();
+            if(longest > 0){
+                try {
+                    TabulatedDemographic table = new TabulatedDemographic(demoFunction, -longest, 0,
+                            arguments.getIntegerOption(TABULATE), tolerance);
+                    demoFunction = table;
+                    progressStream.println("Tabulated the demographic function over " + table.getIntervalCount() +
+                            " intervals (largest error found at " + TabulatedDemographic.CHECK_POINTS + " points per " +
+                            "interval " + table.getLargestErrorFound() + ")");
+                } catch (IllegalArgumentException e){
+                    progressStream.println(e.getMessage() + "; using the exact demographic function");
+                }
+            }
+        }
+
+        VirusTreeSimulator simulator = new VirusTreeSimulator(demoFunction);
+
+        simulator.setMasterSeed(arguments.hasOption(SEED) ? arguments.getLongOption(SEED) : MathUtils.getSeed());
+
+        if(!arguments.hasOption(SEED)){
+            progressStream.println("Random number seed: " + simulator.getMasterSeed() + " (give this as -seed, " +
+                    "with -" + INTRODUCTIONS + ", to regenerate particular trees)");
+        }
+
+        int[] shard = {1, 1};
+
+        if(arguments.hasOption(SHARD)){
+            if(!arguments.hasOption(SEED)){
+                progressStream.println("Each shard of a run must be given the same -seed");
+                System.exit(1);
+            }
+            shard = Shards.parse(arguments.getStringOption(SHARD));
+            simulator.setShard(shard[0], shard[1]);
+        }
+
+        if(arguments.hasOption(INTRODUCTIONS)){
+            simulator.setIntroductions(Arrays.asList(arguments.getStringOption(INTRODUCTIONS).split(",")));
+        }
+
+        simulator.setDetailedTrees(getTreeSelection(arguments) != TreeSelection.SIMPLE);
+
+        if(arguments.hasOption(ENGINE)){
+            String engineString = arguments.getStringOption(ENGINE).toLowerCase();
+            if(engineString.startsWith("e")){
+                simulator.setEventDriven(true);
+            } else if(!engineString.startsWith("t")){
+                progressStream.print("Unrecognised engine");
+                System.exit(1);
+            }
+        }
+
+        if(arguments.hasOption(THREADS)){
+            simulator.setThreadCount(arguments.getIntegerOption(THREADS));
+        }
+
+        if(arguments.hasOption(METRICS)){
+            simulator.setMetrics(new SimulationMetrics(shard[0], shard[1]));
+        }
+
+        if(arguments.hasOption(APPROXIMATE)){
+            simulator.setApproximationTolerance(arguments.getRealOption(APPROXIMATE));
+        }
+
+        if(arguments.hasOption(IMPORTANCE_WEIGHTS)){
+            simulator.setImportanceWeights(new ImportanceWeights());
+        }
+
+        if(arguments.hasOption(INCREMENTAL)){
+            if(!arguments.hasOption(SEED)){
+                progressStream.println("-" + INCREMENTAL + " needs a -seed, the same in every run, as treelets are " +
+                        "only reused between runs with the same seed");
+                System.exit(1);
+            }
+            try {
+                simulator.setTreeletCache(new TreeletCache(arguments.getStringOption(INCREMENTAL)));
+            } catch (IOException e){
+                progressStream.println("Cannot read treelet cache: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if(arguments.hasOption(PROFILE_CACHE)){
+            simulator.setProfileCache(new IntensityProfileCache(arguments.getIntegerOption(PROFILE_CACHE)));
+        }
+
+        return simulator;
+    }
+
+    // writes trees to files starting with outputFileRoot, through a concurrent file writer
+
+    public static TreeExporter makeExporter(Arguments arguments, String outputFileRoot, boolean lineageInFileName)
+            throws IOException{
+        int maxOpenFiles = 64;
+
+        if(arguments.hasOption(MAX_OPEN_FILES)){
+            maxOpenFiles = arguments.getIntegerOption(MAX_OPEN_FILES);
+        }
+
+        long maxQueuedBytes = OutputFileWriter.DEFAULT_MAX_QUEUED_BYTES;
+
+        if(arguments.hasOption(MAX_QUEUED_MB)){
+            maxQueuedBytes = (long)arguments.getIntegerOption(MAX_QUEUED_MB) << 20;
+        }
+
+        PrintStream fileLog = null;
+
+        if(arguments.hasOption(FILE_LOG)){
+            fileLog = new PrintStream(arguments.getStringOption(FILE_LOG));
+        }
+
+        OutputFileWriter writer = new OutputFileWriter(maxOpenFiles, maxQueuedBytes, fileLog);
+
+        progressStream.println("Writing output files on " + (writer.usesVirtualThreads() ? "virtual threads, " +
+                maxOpenFiles + " at once" : maxOpenFiles + " threads"));
+
+        TreeExporter exporter = new TreeExporter(outputFileRoot, getOutputFormat(arguments), lineageInFileName,
+                getTreeSelection(arguments), writer, getNexusLabels(arguments));
+
+        if(arguments.hasOption(PRECISION)){
+            exporter.setPrecision(arguments.getIntegerOption(PRECISION));
+        }
+
+        if(arguments.hasOption(WRITER_THREADS)){
+            exporter.setWriterThreads(arguments.getIntegerOption(WRITER_THREADS));
+        }
+
+        if(arguments.hasOption(SUBTREES)){
+            exporter.setSubsets(LcaIndex.readSubsets(arguments.getStringOption(SUBTREES)));
+        }
+
+        return exporter;
+    }
+
+    // simulates every tree, handing each to the exporter through the export pipeline
+
+    public static void run(Arguments arguments, VirusTreeSimulator simulator, TransmissionGraphBuilder graph,
+                           TreeExporter exporter) throws IOException{
+        if(simulator.getImportanceWeights()!=null && !simulator.isForceCoalescence()){
+            progressStream.println("-" + IMPORTANCE_WEIGHTS + " needs forced coalescence, as the weights estimate " +
+                    "values under it");
+            System.exit(1);
+        }
+
+        int exportThreads = 1;
+
+        if(arguments.hasOption(EXPORT_THREADS)){
+            exportThreads = arguments.getIntegerOption(EXPORT_THREADS);
+        }
+
+        int exportQueue = 2*exportThreads;
+
+        if(arguments.hasOption(EXPORT_QUEUE)){
+            exportQueue = arguments.getIntegerOption(EXPORT_QUEUE);
+        }
+
+        TreeExportPipeline pipeline = new TreeExportPipeline(exportThreads, exportQueue, exporter);
+
+        try {
+            if(arguments.hasOption(HOSTS)){
+                if(!(graph instanceof TransmissionGraph)){
+                    throw new RuntimeException("-" + HOSTS + " needs the whole transmission tree in memory, so " +
+                            "cannot be used with -" + OUT_OF_CORE);
+                }
+                for(FlexibleTree tree : simulator.simulateHosts((TransmissionGraph)graph,
+                        Arrays.asList(arguments.getStringOption(HOSTS).split(",")))){
+                    pipeline.handle(tree);
+                }
+            } else if(graph instanceof PartitionedTransmissionGraph){
+                PartitionedTransmissionGraph partitioned = (PartitionedTransmissionGraph)graph;
+                // the shard is chosen over all the introductions before partitioning, not within each partition,
+                // so the partitions then hold only this shard's introductions and are simulated whole
+                int[] shard = arguments.hasOption(SHARD) ? Shards.parse(arguments.getStringOption(SHARD))
+                        : new int[]{1, 1};
+                partitioned.partition(shard[0], shard[1]);
+                simulator.setShard(1, 1);
+                for(int i=0; i<partitioned.getPartitionCount(); i++){
+                    progressStream.println("Simulating partition " + (i+1) + " of " + partitioned.getPartitionCount()
+                            + " (" + partitioned.getUnitCount(i) + " units)");
+                    simulator.makeTrees(partitioned.loadPartition(i), pipeline);
+                }
+            } else {
+                simulator.makeTrees((TransmissionGraph)graph, pipeline);
+            }
+        } finally {
+            try {
+                pipeline.close();
+            } finally {
+                exporter.close();
+            }
+        }
+
+        simulator.finish();
+
+        if(simulator.getMetrics()!=null){
+            simulator.getMetrics().write(arguments.getStringOption(METRICS));
+        }
+
+        if(simulator.getImportanceWeights()!=null){
+            simulator.getImportanceWeights().write(arguments.getStringOption(IMPORTANCE_WEIGHTS));
+        }
+    }
+
+}
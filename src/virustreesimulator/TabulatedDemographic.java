@@ -0,0 +1,240 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+
+import java.util.Arrays;
+
+/**
+ * Wraps a demographic function whose intensity and inverse intensity are expensive to evaluate with a lookup table
+ * over a fixed range of times. The intensity is interpolated with cubic Hermite splines on a uniform grid, using
+ * 1/N(t) as the derivative at each grid point; the inverse is found by bisection on the table followed by a
+ * safeguarded Newton solve of the same cubic, so the two stay exact inverses of each other. Outside the range the
+ * wrapped function is used directly.
+ *
+ * The table is refined until every interval is monotone and, at CHECK_POINTS evenly spaced points inside every
+ * interval, both the interpolated intensity and the intensity of the time the table's inverse gives for the exact
+ * intensity are within the tolerance of the exact value (relative to the intensity where that exceeds one). The
+ * tolerance is therefore a sampled check, not a guarantee: the derivatives of the wrapped function are not known,
+ * so the error between the check points is not bounded, and a feature narrower than an interval can be missed.
+ * getLargestErrorFound reports the worst case found. If the check cannot be passed within MAX_INTERVALS an
+ * IllegalArgumentException is thrown.
+ *
+ * The table is immutable, so one instance can be shared between threads. It keeps its own copy of the wrapped
+ * function, so changing the original afterwards does not affect it, and it has no parameters of its own
+ * (getNumArguments is zero), so code that walks a demographic function's parameters finds nothing to change.
+ * Tabulate a function with the new parameters instead.
+ */
+
+public class TabulatedDemographic extends DemographicFunction.Abstract {
+
+    public static final int MAX_INTERVALS = 1 << 22;
+
+    // points checked inside each interval, at i/(CHECK_POINTS+1) of its length; an odd number includes the
+    // midpoint, where the interpolation error of a smooth function is largest
+    public static final int CHECK_POINTS = 5;
+
+    private DemographicFunction exact;
+
+    private double start;
+    private double step;
+    private int intervals;
+
+    private double[] intensities;
+    private double[] slopes;
+
+    private double largestErrorFound;
+
+    public TabulatedDemographic(DemographicFunction exact, double start, double end, int intervals,
+                                double tolerance){
+        super(exact.getUnits());
+        if(!(end > start)){
+            throw new IllegalArgumentException("Tabulation range must have positive length");
+        }
+        this.exact = exact.getCopy();
+        this.start = start;
+
+        int tryIntervals = Math.max(intervals, 1);
+        while(true){
+            build(end, tryIntervals);
+            largestErrorFound = checkError();
+            if(largestErrorFound <= tolerance){
+                break;
+            }
+            if(tryIntervals >= MAX_INTERVALS){
+                throw new IllegalArgumentException("Cannot tabulate this demographic function to within " + tolerance
+                        + " with " + MAX_INTERVALS + " intervals (error " + largestErrorFound + ")");
+            }
+            tryIntervals = Math.min(2*tryIntervals, MAX_INTERVALS);
+        }
+    }
+
+    private void build(double end, int intervals){
+        this.intervals = intervals;
+        step = (end - start)/intervals;
+        intensities = new double[intervals+1];
+        slopes = new double[intervals+1];
+        for(int i=0; i<=intervals; i++){
+            double t = gridTime(i);
+            intensities[i] = exact.getIntensity(t);
+            slopes[i] = 1.0/exact.getDemographic(t);
+        }
+    }
+
+    private double gridTime(int i){
+        return i==intervals ? start + step*intervals : start + step*i;
+    }
+
+    // the largest scaled error at the check points, forwards and through the inverse, or infinity if any interval
+    // is not monotone
+
+    private double checkError(){
+        double worst = 0;
+        for(int i=0; i<intervals; i++){
+            double rise = intensities[i+1] - intensities[i];
+            if(!(rise > 0)){
+                return Double.POSITIVE_INFINITY;
+            }
+            double alpha = slopes[i]*step/rise;
+            double beta = slopes[i+1]*step/rise;
+            if(alpha*alpha + beta*beta > 9){
+                return Double.POSITIVE_INFINITY;
+            }
+
+            for(int j=1; j<=CHECK_POINTS; j++){
+                double s = (double)j/(CHECK_POINTS+1);
+                double exactValue = exact.getIntensity(gridTime(i) + s*step);
+                double scale = Math.max(1, Math.abs(exactValue));
+
+                double error = Math.abs(hermite(i, s) - exactValue)/scale;
+                // the exact intensity where the table puts exactValue, so that a poor inverse shows up too
+                double inverseError = Math.abs(exact.getIntensity(getInverseIntensity(exactValue)) - exactValue)/scale;
+
+                worst = Math.max(worst, Math.max(error, inverseError));
+                if(Double.isNaN(error) || Double.isNaN(inverseError)){
+                    return Double.POSITIVE_INFINITY;
+                }
+            }
+        }
+        return worst;
+    }
+
+    private double hermite(int i, double s){
+        double s2 = s*s;
+        double s3 = s2*s;
+        return (2*s3 - 3*s2 + 1)*intensities[i] + (s3 - 2*s2 + s)*step*slopes[i]
+                + (-2*s3 + 3*s2)*intensities[i+1] + (s3 - s2)*step*slopes[i+1];
+    }
+
+    private double hermiteDerivative(int i, double s){
+        double s2 = s*s;
+        return ((6*s2 - 6*s)*intensities[i] + (3*s2 - 4*s + 1)*step*slopes[i]
+                + (-6*s2 + 6*s)*intensities[i+1] + (3*s2 - 2*s)*step*slopes[i+1])/step;
+    }
+
+    // the largest scaled error found at the check points; not a bound on the error elsewhere
+
+    public double getLargestErrorFound(){
+        return largestErrorFound;
+    }
+
+    public int getIntervalCount(){
+        return intervals;
+    }
+
+    public double getStart(){
+        return start;
+    }
+
+    public double getEnd(){
+        return gridTime(intervals);
+    }
+
+    public double getIntensity(double t){
+        double position = (t - start)/step;
+        if(!(position >= 0 && position <= intervals)){
+            return exact.getIntensity(t);
+        }
+        int i = Math.min((int)position, intervals-1);
+        return hermite(i, position - i);
+    }
+
+    public double getInverseIntensity(double x){
+        if(!(x >= intensities[0] && x <= intensities[intervals])){
+            return exact.getInverseIntensity(x);
+        }
+
+        int i = Arrays.binarySearch(intensities, x);
+        if(i >= 0){
+            return gridTime(i);
+        }
+        i = -i - 2;
+
+        // Newton from the linear guess, falling back to bisection if a step leaves the bracket
+
+        double low = 0;
+        double high = 1;
+        double s = (x - intensities[i])/(intensities[i+1] - intensities[i]);
+        for(int iteration=0; iteration<50; iteration++){
+            double residual = hermite(i, s) - x;
+            if(residual > 0){
+                high = s;
+            } else {
+                low = s;
+            }
+            double next = s - residual/(hermiteDerivative(i, s)*step);
+            if(!(next > low && next < high)){
+                next = 0.5*(low + high);
+            }
+            if(Math.abs(next - s) < 1E-14){
+                s = next;
+                break;
+            }
+            s = next;
+        }
+        return start + step*(i + s);
+    }
+
+    public double getDemographic(double t){
+        return exact.getDemographic(t);
+    }
+
+    // a copy of the function that was tabulated
+
+    public DemographicFunction getExact(){
+        return exact.getCopy();
+    }
+
+    public int getNumArguments(){
+        return 0;
+    }
+
+    public String getArgumentName(int n){
+        throw noArgument(n);
+    }
+
+    public double getArgument(int n){
+        throw noArgument(n);
+    }
+
+    public void setArgument(int n, double value){
+        throw noArgument(n);
+    }
+
+    public double getLowerBound(int n){
+        throw noArgument(n);
+    }
+
+    public double getUpperBound(int n){
+        throw noArgument(n);
+    }
+
+    private static IndexOutOfBoundsException noArgument(int n){
+        return new IndexOutOfBoundsException("A tabulated demographic function has no argument " + n);
+    }
+
+    public DemographicFunction getCopy(){
+        // never modified after construction
+        return this;
+    }
+
+}
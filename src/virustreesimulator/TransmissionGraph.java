@@ -0,0 +1,112 @@
+package virustreesimulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The transmission tree (or forest) that virus trees are simulated within: the infected units, who infected whom
+ * and when, and when each unit was sampled. The input formats all build one of these; a program embedding the
+ * simulator can build one directly, adding each infection (or introduction) before anything the infectee does.
+ */
+
+public class TransmissionGraph implements TransmissionGraphBuilder {
+
+    private ArrayList<InfectedUnit> units;
+    private HashMap<String, InfectedUnit> idMap;
+
+    public TransmissionGraph(){
+        units = new ArrayList<InfectedUnit>();
+        idMap = new HashMap<String, InfectedUnit>();
+    }
+
+    public void addUnit(String id){
+        getOrAddUnit(id);
+    }
+
+    // returns the existing unit if there is one
+
+    private InfectedUnit getOrAddUnit(String id){
+        InfectedUnit unit = idMap.get(id);
+        if(unit==null){
+            unit = new InfectedUnit(id);
+            units.add(unit);
+            idMap.put(id, unit);
+        }
+        return unit;
+    }
+
+    public boolean hasUnit(String id){
+        return idMap.containsKey(id);
+    }
+
+    public boolean isInfected(String id){
+        InfectedUnit unit = idMap.get(id);
+        return unit!=null && unit.infectionEvent!=null;
+    }
+
+    public InfectedUnit getUnit(String id){
+        return idMap.get(id);
+    }
+
+    public List<InfectedUnit> getUnits(){
+        return Collections.unmodifiableList(units);
+    }
+
+    public void addInfection(String infectorId, String infecteeId, double time){
+        InfectedUnit infector = getDefinedUnit(infectorId);
+        InfectedUnit infectee = getOrAddUnit(infecteeId);
+
+        Event infection = new Event(EventType.INFECTION, time, infector, infectee);
+
+        infector.addInfectionEvent(infection);
+        infectee.setInfectionEvent(infection);
+
+        infectee.parent = infector;
+    }
+
+    public void addIntroduction(String id, double time){
+        InfectedUnit unit = getOrAddUnit(id);
+        unit.setInfectionEvent(new Event(EventType.INFECTION, time, null, unit));
+    }
+
+    public void addSampling(String id, double time, int instances){
+        getDefinedUnit(id).addSamplingEvent(time, instances);
+    }
+
+    public List<InfectedUnit> getIntroductions(){
+        ArrayList<InfectedUnit> introducedCases = new ArrayList<InfectedUnit>();
+
+        for(InfectedUnit unit : units){
+            if(unit.parent==null){
+                introducedCases.add(unit);
+            }
+        }
+        return introducedCases;
+    }
+
+    // this bounds the times at which the demographic function is evaluated
+
+    public double getLongestInfection(){
+        double longest = 0;
+        for(InfectedUnit unit : units){
+            if(unit.infectionEvent==null){
+                continue;
+            }
+            for(Event event : unit.childEvents){
+                longest = Math.max(longest, event.time - unit.infectionEvent.time);
+            }
+        }
+        return longest;
+    }
+
+    private InfectedUnit getDefinedUnit(String id){
+        InfectedUnit unit = idMap.get(id);
+        if(unit==null){
+            throw new RuntimeException("Unit " + id + " not previously defined");
+        }
+        return unit;
+    }
+
+}
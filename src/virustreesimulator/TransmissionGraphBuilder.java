@@ -0,0 +1,29 @@
+package virustreesimulator;
+
+/**
+ * What an input format needs to record a transmission tree: either a TransmissionGraph held in memory or a
+ * PartitionedTransmissionGraph spilled to disk.
+ */
+
+public interface TransmissionGraphBuilder {
+
+    // does nothing if the unit is already present
+    void addUnit(String id);
+
+    boolean hasUnit(String id);
+
+    // whether an infection or introduction has been recorded for this unit
+    boolean isInfected(String id);
+
+    // the infector must already be present; the infectee is added if it is not
+    void addInfection(String infectorId, String infecteeId, double time);
+
+    void addIntroduction(String id, double time);
+
+    // instances is the number of samples taken at this time
+    void addSampling(String id, double time, int instances);
+
+    // the longest time between a unit's infection and any of its later events
+    double getLongestInfection();
+
+}
@@ -0,0 +1,103 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.SimpleNode;
+import dr.evolution.tree.SimpleTree;
+import dr.evolution.util.Taxon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Draws the transmission tree itself as a phylogeny: each unit is a lineage from its infection to its last event,
+ * with a node at every onward infection and a tip at each sampling.
+ *
+ * @author mhall
+ */
+
+public class TransmissionTreeBuilder {
+
+    private TransmissionTreeBuilder(){
+    }
+
+    public static FlexibleTree makeTree(TransmissionGraph graph){
+
+        // find the first case
+
+        List<InfectedUnit> introducedCases = graph.getIntroductions();
+
+        if(introducedCases.size()==0){
+            throw new RuntimeException("Can't find a first case");
+        }
+
+        if(introducedCases.size()>1){
+            throw new RuntimeException("We require a single, connected tree");
+        }
+
+        double latestEventTime = Double.NEGATIVE_INFINITY;
+
+        for(InfectedUnit unit : graph.getUnits()){
+            for(Event child : unit.childEvents){
+                if(child.time > latestEventTime){
+                    latestEventTime = child.time;
+                }
+            }
+        }
+
+        HashMap<Event, SimpleNode> eventToNode = new HashMap<Event, SimpleNode>();
+
+        ArrayList<Event> allInfections = new ArrayList<Event>();
+
+        for(InfectedUnit unit : graph.getUnits()){
+            if(!(allInfections.contains(unit.infectionEvent))) {
+                allInfections.add(unit.infectionEvent);
+            }
+        }
+
+        Collections.sort(allInfections);
+
+        SimpleTree out = null;
+
+        for(Event infectionEvent: allInfections){
+            InfectedUnit infectee = infectionEvent.infectee;
+            ArrayList<Event> infecteeChildEvents = new ArrayList<Event>(infectee.childEvents);
+            Collections.sort(infecteeChildEvents);
+            SimpleNode eventNode;
+            if(infectionEvent == allInfections.get(0)){
+                double nodeTime = latestEventTime - infectionEvent.time;
+                eventNode = new SimpleNode();
+                out = new SimpleTree(eventNode);
+                out.beginTreeEdit();
+                eventNode.setHeight(nodeTime);
+                eventToNode.put(infectionEvent, eventNode);
+            } else {
+                if(!(eventToNode.containsKey(infectionEvent))){
+                    throw new RuntimeException("No record of infection node that should already have been generated.");
+                }
+                eventNode =  eventToNode.get(infectionEvent);
+            }
+            SimpleNode lastEventNode = eventNode;
+
+            for(Event childEvent : infecteeChildEvents){
+                double nodeTime = latestEventTime - childEvent.time;
+                eventNode = new SimpleNode();
+                eventToNode.put(childEvent, eventNode);
+                out.addChild(lastEventNode, eventNode);
+                eventNode.setHeight(nodeTime);
+                lastEventNode = eventNode;
+                if(childEvent.type == EventType.SAMPLE){
+                    eventNode.setTaxon(new Taxon(infectee.id));
+                }
+
+            }
+
+        }
+        out.endTreeEdit();
+
+        return new FlexibleTree(new FlexibleNode(out, out.getRoot(), true));
+    }
+
+}
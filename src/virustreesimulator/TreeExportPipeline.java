@@ -0,0 +1,99 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleTree;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Hands finished trees from the simulating thread to a pool of export workers, so that simplifying and writing the
+ * tree for one introduction overlaps with simulating the next. At most "capacity" trees are queued or being written
+ * at any one time; handle() blocks when that limit is reached. Trees may be handed over from several simulating
+ * threads at once.
+ */
+
+public class TreeExportPipeline implements TreeHandler {
+
+    private ExecutorService workers;
+    private Semaphore slots;
+    private TreeHandler handler;
+    private ArrayList<Future<Void>> pending;
+
+    public TreeExportPipeline(int workerCount, int capacity, TreeHandler handler){
+        if(workerCount < 1 || capacity < 1){
+            throw new IllegalArgumentException("Export pipeline needs at least one worker and one queue slot");
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.slots = new Semaphore(capacity);
+        this.handler = handler;
+        this.pending = new ArrayList<Future<Void>>();
+    }
+
+    public void handle(final FlexibleTree tree) throws IOException{
+        checkFinished(false);
+
+        try {
+            slots.acquire();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free export slot");
+        }
+
+        Future<Void> future = workers.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    handler.handle(tree);
+                } finally {
+                    slots.release();
+                }
+                return null;
+            }
+        });
+
+        synchronized (this) {
+            pending.add(future);
+        }
+    }
+
+    // waits for every submitted tree to be written, rethrowing the first failure
+
+    public void close() throws IOException{
+        workers.shutdown();
+        try {
+            checkFinished(true);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private synchronized void checkFinished(boolean wait) throws IOException{
+        Iterator<Future<Void>> it = pending.iterator();
+        while(it.hasNext()){
+            Future<Void> future = it.next();
+            if(!wait && !future.isDone()){
+                continue;
+            }
+            try {
+                future.get();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for tree export");
+            } catch (ExecutionException e){
+                if(e.getCause() instanceof IOException){
+                    throw (IOException)e.getCause();
+                }
+                throw new RuntimeException("Tree export failed", e.getCause());
+            }
+            it.remove();
+        }
+    }
+
+}
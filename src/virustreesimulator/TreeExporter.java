@@ -0,0 +1,185 @@
+package virustreesimulator;
+
+import dr.app.tools.NexusExporter;
+import dr.evolution.tree.FlexibleTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Writes each detailed tree and/or its simplified version to files named after the first case (and, if more than one
+ * lineage can be transmitted to it, the lineage number), in the chosen format. Each file is put together in memory
+ * and then written, either straight away or, if there is a file writer, concurrently with the others. Nexus tips
+ * are labelled as NexusLabels says; with NexusLabels.TABLE each Nexus file has a "_labels.csv" file beside it. Full
+ * labels at full precision go through BEAST's NexusExporter, whatever the number of writer threads, so that the
+ * files do not depend on it; everything else goes through NexusTreeWriter. If there are tip subsets, the subtree
+ * each induces in a tree (from the simple tree, if it is written) is written too, as "_<subset>_induced", using an
+ * LcaIndex of the tree.
+ */
+
+public class TreeExporter implements TreeHandler {
+
+    private String outputFileRoot;
+    private OutputFormat outputFormat;
+    private boolean lineageInFileName;
+    private TreeSelection treeSelection;
+    private OutputFileWriter fileWriter;
+    private NexusLabels nexusLabels;
+    private int precision;
+    // null unless large trees are each written on several threads
+    private ForkJoinPool writerPool;
+    // null unless induced subtrees are written
+    private LinkedHashMap<String, ArrayList<String>> subsets;
+
+    public TreeExporter(String outputFileRoot, OutputFormat outputFormat, boolean lineageInFileName){
+        this(outputFileRoot, outputFormat, lineageInFileName, TreeSelection.BOTH, null);
+    }
+
+    // with TreeSelection.SIMPLE the trees handed over must already be simple (see
+    // VirusTreeSimulator.setDetailedTrees)
+
+    public TreeExporter(String outputFileRoot, OutputFormat outputFormat, boolean lineageInFileName,
+                        TreeSelection treeSelection, OutputFileWriter fileWriter){
+        this(outputFileRoot, outputFormat, lineageInFileName, treeSelection, fileWriter, NexusLabels.FULL);
+    }
+
+    public TreeExporter(String outputFileRoot, OutputFormat outputFormat, boolean lineageInFileName,
+                        TreeSelection treeSelection, OutputFileWriter fileWriter, NexusLabels nexusLabels){
+        this.outputFileRoot = outputFileRoot;
+        this.outputFormat = outputFormat;
+        this.lineageInFileName = lineageInFileName;
+        this.treeSelection = treeSelection;
+        this.fileWriter = fileWriter;
+        this.nexusLabels = nexusLabels;
+    }
+
+    // significant digits for Nexus branch lengths; zero, the default, writes them exactly
+
+    public void setPrecision(int precision){
+        if(precision < 0 || precision > ByteBuilder.MAX_PRECISION){
+            throw new IllegalArgumentException("Precision must be between 0 and " + ByteBuilder.MAX_PRECISION);
+        }
+        this.precision = precision;
+    }
+
+    // the threads each large Nexus tree written by NexusTreeWriter (with NexusLabels other than FULL, or a
+    // precision) is split between; the files are the same whatever the number
+
+    public void setWriterThreads(int threads){
+        if(threads < 1){
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        if(writerPool!=null){
+            writerPool.shutdown();
+        }
+        writerPool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    // named sets of tip labels; subsets with no tips in a tree are skipped for it
+
+    public void setSubsets(LinkedHashMap<String, ArrayList<String>> subsets){
+        this.subsets = subsets;
+    }
+
+    public void handle(FlexibleTree tree) throws IOException{
+        boolean detailed = treeSelection != TreeSelection.SIMPLE;
+        boolean simple = treeSelection != TreeSelection.DETAILED;
+
+        FlexibleTree wbTree = null;
+        if(simple){
+            wbTree = detailed ? TreeSimplifier.makeWellBehavedTree(tree) : tree;
+        }
+
+        String fileRoot = outputFileRoot + tree.getAttribute("firstCase");
+        if(lineageInFileName){
+            fileRoot += "_" + tree.getNodeAttribute(tree.getRoot(), "TransmittedLineage");
+        }
+
+        if(outputFormat != OutputFormat.BINARY){
+            if(detailed){
+                writeNexus(fileRoot + "_detailed", tree);
+            }
+            if(simple){
+                writeNexus(fileRoot + "_simple", wbTree);
+            }
+        }
+
+        if(outputFormat != OutputFormat.NEXUS){
+            if(detailed){
+                writeFile(fileRoot + "_detailed.vtb", BinaryTreeWriter.toBytes(tree));
+            }
+            if(simple){
+                writeFile(fileRoot + "_simple.vtb", BinaryTreeWriter.toBytes(wbTree));
+            }
+        }
+
+        if(subsets!=null){
+            LcaIndex index = new LcaIndex(simple ? wbTree : tree);
+            for(Map.Entry<String, ArrayList<String>> subset : subsets.entrySet()){
+                FlexibleTree induced = index.getInducedSubtree(subset.getValue());
+                if(induced==null){
+                    continue;
+                }
+                String subsetRoot = fileRoot + "_" + subset.getKey() + "_induced";
+                if(outputFormat != OutputFormat.BINARY){
+                    writeNexus(subsetRoot, induced);
+                }
+                if(outputFormat != OutputFormat.NEXUS){
+                    writeFile(subsetRoot + ".vtb", BinaryTreeWriter.toBytes(induced));
+                }
+            }
+        }
+    }
+
+    // waits for the file writer, if any, to finish
+
+    public void close() throws IOException{
+        if(writerPool!=null){
+            writerPool.shutdown();
+        }
+        if(fileWriter!=null){
+            fileWriter.close();
+        }
+    }
+
+    private void writeNexus(String fileRoot, FlexibleTree tree) throws IOException{
+        if(nexusLabels==NexusLabels.FULL && precision==0){
+            writeFile(fileRoot + ".nex", toNexus(tree));
+        } else if(nexusLabels!=NexusLabels.TABLE){
+            writeFile(fileRoot + ".nex", NexusTreeWriter.toBytes(tree, nexusLabels, precision, null, writerPool));
+        } else {
+            ArrayList<String> tipLabels = new ArrayList<String>();
+            writeFile(fileRoot + ".nex", NexusTreeWriter.toBytes(tree, nexusLabels, precision, tipLabels,
+                    writerPool));
+            writeFile(fileRoot + "_labels.csv", NexusTreeWriter.labelTable(tipLabels));
+        }
+    }
+
+    private static byte[] toNexus(FlexibleTree tree){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream stream = new PrintStream(bytes);
+        new NexusExporter(stream).exportTree(tree);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    private void writeFile(String fileName, byte[] contents) throws IOException{
+        if(fileWriter!=null){
+            fileWriter.write(fileName, contents);
+        } else {
+            FileOutputStream stream = new FileOutputStream(fileName);
+            try {
+                stream.write(contents);
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleTree;
+
+import java.io.IOException;
+
+/**
+ * Receives each tree as the simulator completes it.
+ */
+
+public interface TreeHandler {
+    void handle(FlexibleTree tree) throws IOException;
+}
@@ -0,0 +1,10 @@
+package virustreesimulator;
+
+/**
+ * Which forms of each tree are written: the detailed tree with its transmission nodes, the simple bifurcating tree,
+ * or both.
+ */
+
+public enum TreeSelection {
+    DETAILED, SIMPLE, BOTH
+}
@@ -0,0 +1,53 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+
+/**
+ * Removes the degree-one nodes that mark transmissions (and the infection of the first case) from a detailed tree,
+ * leaving an ordinary bifurcating phylogeny.
+ *
+ * @author mhall
+ */
+
+public class TreeSimplifier {
+
+    private TreeSimplifier(){
+    }
+
+    public static FlexibleTree makeWellBehavedTree(FlexibleTree tree){
+        FlexibleTree newPhylogeneticTree = new FlexibleTree(tree, false);
+
+        newPhylogeneticTree.beginTreeEdit();
+        for(int i=0; i<newPhylogeneticTree.getInternalNodeCount(); i++){
+            FlexibleNode node = (FlexibleNode)newPhylogeneticTree.getInternalNode(i);
+            if(newPhylogeneticTree.getChildCount(node)==1){
+                FlexibleNode parent = (FlexibleNode)newPhylogeneticTree.getParent(node);
+                FlexibleNode child = (FlexibleNode)newPhylogeneticTree.getChild(node, 0);
+                if(parent!=null){
+                    double childHeight = newPhylogeneticTree.getNodeHeight(child);
+                    newPhylogeneticTree.removeChild(parent, node);
+                    newPhylogeneticTree.addChild(parent, child);
+                    newPhylogeneticTree.setNodeHeight(child, childHeight);
+                } else {
+                    child.setParent(null);
+                    newPhylogeneticTree.setRoot(child);
+                }
+            }
+        }
+        newPhylogeneticTree.endTreeEdit();
+        Object transmittedLineage = tree.getNodeAttribute(tree.getRoot(), "TransmittedLineage");
+        if(transmittedLineage!=null){
+            newPhylogeneticTree.setNodeAttribute(newPhylogeneticTree.getRoot(), "TransmittedLineage",
+                    transmittedLineage);
+        }
+
+        FlexibleTree out = new FlexibleTree(newPhylogeneticTree, true);
+        out.setAttribute("firstCase", tree.getAttribute("firstCase"));
+        if(tree.getAttribute("logImportanceWeight")!=null){
+            out.setAttribute("logImportanceWeight", tree.getAttribute("logImportanceWeight"));
+        }
+        return out;
+    }
+
+}
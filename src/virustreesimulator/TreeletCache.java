@@ -0,0 +1,230 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.util.Taxon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the coalescent treelet simulated for each host between runs, keyed by a digest of everything the simulation
+ * depended on (the host's relevant events relative to its infection, the demographic function and the host's
+ * seed). A treelet is only reused if that digest is unchanged. Saving writes out only the entries used in this run,
+ * so hosts that disappear from the transmission tree drop out of the cache.
+ * <p>
+ * Only the coalescent draw is saved: every host, changed or not, is still grafted into the tree, so a rerun saves
+ * the simulation of unchanged hosts but not the building of the trees.
+ */
+
+public class TreeletCache {
+
+    private static final int VERSION = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String fileName;
+    private HashMap<String, Entry> previous;
+    private HashMap<String, Entry> current;
+
+    private int hits;
+    private int misses;
+
+    public TreeletCache(String fileName) throws IOException{
+        this.fileName = fileName;
+        previous = new HashMap<String, Entry>();
+        current = new HashMap<String, Entry>();
+
+        if(new File(fileName).exists()){
+            load();
+        }
+    }
+
+    public synchronized Entry get(String hostId, byte[] signature){
+        Entry entry = previous.get(hostId);
+        if(entry!=null && Arrays.equals(entry.signature, signature)){
+            current.put(hostId, entry);
+            hits++;
+            return entry;
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(String hostId, Entry entry){
+        current.put(hostId, entry);
+    }
+
+    public synchronized int getHitCount(){
+        return hits;
+    }
+
+    public synchronized int getMissCount(){
+        return misses;
+    }
+
+    public static byte[] digest(String signature){
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(signature.getBytes(UTF8));
+        } catch (NoSuchAlgorithmException e){
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    private void load() throws IOException{
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        try {
+            if(in.readInt()!=VERSION){
+                // an old layout is simply a cold cache
+                return;
+            }
+            int entryCount = in.readInt();
+            for(int i=0; i<entryCount; i++){
+                byte[] hostBytes = new byte[in.readInt()];
+                in.readFully(hostBytes);
+                byte[] signature = new byte[in.readInt()];
+                in.readFully(signature);
+                int nodeCount = in.readInt();
+                int[] parent = new int[nodeCount];
+                double[] height = new double[nodeCount];
+                int[] tipIndex = new int[nodeCount];
+                for(int j=0; j<nodeCount; j++){
+                    parent[j] = in.readInt();
+                    height[j] = in.readDouble();
+                    tipIndex[j] = in.readInt();
+                }
+                previous.put(new String(hostBytes, UTF8), new Entry(signature, parent, height, tipIndex));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void save() throws IOException{
+        File target = new File(fileName);
+        File temp = new File(fileName + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(current.size());
+            for(Map.Entry<String, Entry> item : current.entrySet()){
+                byte[] hostBytes = item.getKey().getBytes(UTF8);
+                out.writeInt(hostBytes.length);
+                out.write(hostBytes);
+                Entry entry = item.getValue();
+                out.writeInt(entry.signature.length);
+                out.write(entry.signature);
+                out.writeInt(entry.parent.length);
+                for(int j=0; j<entry.parent.length; j++){
+                    out.writeInt(entry.parent[j]);
+                    out.writeDouble(entry.height[j]);
+                    out.writeInt(entry.tipIndex[j]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if(target.exists() && !target.delete()){
+            throw new IOException("Cannot replace treelet cache " + fileName);
+        }
+        if(!temp.renameTo(target)){
+            throw new IOException("Cannot write treelet cache " + fileName);
+        }
+    }
+
+    /**
+     * The lineages of a treelet in pre-order, one root after another: parent index (-1 for a root), node height, and
+     * for tips the index of the tip in the list the treelet was simulated from (-1 for internal nodes).
+     */
+
+    public static class Entry {
+        private byte[] signature;
+        private int[] parent;
+        private double[] height;
+        private int[] tipIndex;
+
+        private Entry(byte[] signature, int[] parent, double[] height, int[] tipIndex){
+            this.signature = signature;
+            this.parent = parent;
+            this.height = height;
+            this.tipIndex = tipIndex;
+        }
+
+        // tips are recognised by their taxa, which the simulated nodes share with the nodes they were built from
+
+        public static Entry fromTreelet(byte[] signature, List<FlexibleNode> roots, List<Taxon> tipTaxa){
+            IdentityHashMap<Taxon, Integer> tipIndexByTaxon = new IdentityHashMap<Taxon, Integer>();
+            for(int i=0; i<tipTaxa.size(); i++){
+                tipIndexByTaxon.put(tipTaxa.get(i), i);
+            }
+
+            ArrayList<FlexibleNode> preOrder = new ArrayList<FlexibleNode>();
+            HashMap<FlexibleNode, Integer> index = new HashMap<FlexibleNode, Integer>();
+            HashSet<FlexibleNode> rootSet = new HashSet<FlexibleNode>(roots);
+
+            ArrayDeque<FlexibleNode> stack = new ArrayDeque<FlexibleNode>();
+            for(FlexibleNode root : roots){
+                stack.push(root);
+                while(!stack.isEmpty()){
+                    FlexibleNode node = stack.pop();
+                    index.put(node, preOrder.size());
+                    preOrder.add(node);
+                    for(int i=node.getChildCount()-1; i>=0; i--){
+                        stack.push(node.getChild(i));
+                    }
+                }
+            }
+
+            int nodeCount = preOrder.size();
+            int[] parent = new int[nodeCount];
+            double[] height = new double[nodeCount];
+            int[] tipIndex = new int[nodeCount];
+
+            for(int i=0; i<nodeCount; i++){
+                FlexibleNode node = preOrder.get(i);
+                parent[i] = rootSet.contains(node) ? -1 : index.get(node.getParent());
+                height[i] = node.getHeight();
+                tipIndex[i] = node.getChildCount()==0 ? tipIndexByTaxon.get(node.getTaxon()) : -1;
+            }
+
+            return new Entry(signature, parent, height, tipIndex);
+        }
+
+        // tips must already carry their taxa and attributes; only heights, lengths and topology are restored here
+
+        public ArrayList<FlexibleNode> toTreelet(FlexibleNode[] tips){
+            ArrayList<FlexibleNode> roots = new ArrayList<FlexibleNode>();
+            FlexibleNode[] nodes = new FlexibleNode[parent.length];
+            for(int i=0; i<parent.length; i++){
+                nodes[i] = tipIndex[i]==-1 ? new FlexibleNode() : tips[tipIndex[i]];
+                nodes[i].setHeight(height[i]);
+                if(parent[i]!=-1){
+                    nodes[i].setLength(height[parent[i]] - height[i]);
+                    nodes[parent[i]].addChild(nodes[i]);
+                } else {
+                    roots.add(nodes[i]);
+                }
+            }
+            return roots;
+        }
+    }
+
+}
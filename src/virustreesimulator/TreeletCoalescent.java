@@ -0,0 +1,258 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.tree.SimpleNode;
+import dr.math.MersenneTwisterFast;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Within-host coalescent simulation for a single treelet. Tip heights are non-positive and the bound (the infection
+ * time) is zero, the same frame as CoalescentSimulator is run in. Waiting times are drawn on the intensity scale, so
+ * the only demographic evaluations made during a simulation are inverse intensities at the coalescence times; the
+ * intensities at the tips and the bound come from an IntensityProfile that can be shared between simulations. Draws
+ * come from the generator passed in, so that each host can have its own.
+ */
+
+public class TreeletCoalescent {
+
+    private TreeletCoalescent(){
+    }
+
+    /**
+     * Two lineages. If coalescence is forced, the waiting time on the intensity scale is an exponential truncated to
+     * the intensity left before the bound, so this needs no rejection; otherwise both lineages are returned if the
+     * waiting time runs past the bound.
+     */
+
+    public static SimpleNode[] simulatePair(SimpleNode node1, SimpleNode node2, DemographicFunction demogFunct,
+                                            double bound, boolean forceCoalescence, MersenneTwisterFast random){
+        double start = Math.max(node1.getHeight(), node2.getHeight());
+
+        double startIntensity = demogFunct.getIntensity(start);
+        double available = demogFunct.getIntensity(bound) - startIntensity;
+
+        double drawn;
+        if(forceCoalescence){
+            drawn = -Math.log1p(random.nextDouble()*Math.expm1(-available));
+        } else {
+            drawn = -Math.log(random.nextDouble());
+            if(drawn >= available){
+                return new SimpleNode[]{node1, node2};
+            }
+        }
+
+        double height = demogFunct.getInverseIntensity(startIntensity + drawn);
+        height = Math.min(Math.max(height, start), bound);
+
+        SimpleNode parent = new SimpleNode();
+        parent.setHeight(height);
+        parent.addChild(node1);
+        parent.addChild(node2);
+        return new SimpleNode[]{parent};
+    }
+
+    /**
+     * Runs the coalescent from the lowest tip up to the bound, returning the lineages remaining there (a single root
+     * if everything coalesced). The active lineages are kept unordered in an array: a pair is picked by index, the
+     * parent takes the place of one and the last lineage fills the gap left by the other, so each coalescence takes
+     * constant time however many lineages there are.
+     */
+
+    public static SimpleNode[] simulate(SimpleNode[] tips, IntensityProfile profile, DemographicFunction demogFunct,
+                                        MersenneTwisterFast random){
+        return simulate(tips, profile, demogFunct, random, null);
+    }
+
+    /**
+     * As above, but if logWeight is not null the lineages always coalesce: once the last tip has been added, each
+     * waiting time is drawn truncated to the intensity left before the bound. The log of the chance of each such
+     * draw being that short (the importance weight relative to the untruncated coalescent) is added to
+     * logWeight[0].
+     */
+
+    public static SimpleNode[] simulate(SimpleNode[] tips, IntensityProfile profile, DemographicFunction demogFunct,
+                                        MersenneTwisterFast random, double[] logWeight){
+        SimpleNode[] sortedTips = sortByHeight(tips);
+
+        SimpleNode[] active = new SimpleNode[sortedTips.length];
+        int lineages = 0;
+
+        int nextTip = 0;
+        int nextGroup = 0;
+        double intensity = 0;
+
+        while(true){
+            double nextIntensity = nextGroup < profile.getHeightCount() ? profile.getIntensity(nextGroup)
+                    : profile.getBoundIntensity();
+
+            if(lineages >= 2){
+                double rate = lineages*(lineages-1)/2.0;
+                boolean truncated = logWeight!=null && nextGroup == profile.getHeightCount();
+                double target;
+                if(truncated){
+                    double available = rate*(nextIntensity - intensity);
+                    target = intensity - Math.log1p(random.nextDouble()*Math.expm1(-available))/rate;
+                    target = Math.min(target, nextIntensity);
+                    logWeight[0] += Math.log(-Math.expm1(-available));
+                } else {
+                    target = intensity - Math.log(random.nextDouble())/rate;
+                }
+
+                if(truncated || target < nextIntensity){
+                    int first = random.nextInt(lineages);
+                    int second = random.nextInt(lineages-1);
+                    if(second >= first){
+                        second++;
+                    }
+
+                    SimpleNode parent = new SimpleNode();
+                    parent.setHeight(demogFunct.getInverseIntensity(target));
+                    parent.addChild(active[first]);
+                    parent.addChild(active[second]);
+
+                    active[first] = parent;
+                    active[second] = active[lineages-1];
+                    active[lineages-1] = null;
+                    lineages--;
+
+                    intensity = target;
+                    continue;
+                }
+            }
+
+            if(nextGroup == profile.getHeightCount()){
+                break;
+            }
+
+            double groupHeight = profile.getHeight(nextGroup);
+            while(nextTip < sortedTips.length && sortedTips[nextTip].getHeight() == groupHeight){
+                active[lineages] = sortedTips[nextTip];
+                lineages++;
+                nextTip++;
+            }
+            intensity = nextIntensity;
+            nextGroup++;
+        }
+
+        return Arrays.copyOf(active, lineages);
+    }
+
+    /**
+     * An estimate of how far simulateStar's distribution for these tips is from the exact coalescent's (in total
+     * variation), in the same frame. Where the whole span from the lowest tip to the bound has intensity L and there
+     * are k tips, the chance of any coalescence, or the distortion from ignoring the exponential factor in the
+     * forced coalescent's density, is at most 1-exp(-k(k-1)L/2), so unforced this is a bound. When coalescence is
+     * forced, coalescences before the highest tip add a heuristic term, (k-1) times the ratio of the intensity below
+     * that tip to the intensity above it, and the sum is an estimate rather than a bound.
+     */
+
+    public static double starErrorEstimate(SimpleNode[] tips, DemographicFunction demogFunct, double bound,
+                                           boolean forceCoalescence){
+        int lineages = tips.length;
+        if(lineages < 2){
+            return 0;
+        }
+
+        double lowest = Double.POSITIVE_INFINITY;
+        double highest = Double.NEGATIVE_INFINITY;
+        for(SimpleNode tip : tips){
+            lowest = Math.min(lowest, tip.getHeight());
+            highest = Math.max(highest, tip.getHeight());
+        }
+
+        double boundIntensity = demogFunct.getIntensity(bound);
+        double highestIntensity = demogFunct.getIntensity(highest);
+        double lowestIntensity = demogFunct.getIntensity(lowest);
+
+        double error = -Math.expm1(-lineages*(lineages-1)/2.0*(boundIntensity - lowestIntensity));
+        if(forceCoalescence){
+            double last = boundIntensity - highestIntensity;
+            if(last <= 0){
+                return 1;
+            }
+            error += (lineages-1)*(highestIntensity - lowestIntensity)/last;
+        }
+        return Math.min(error, 1);
+    }
+
+    /**
+     * The limit of the coalescent as the intensity between the tips and the bound goes to zero, for use when
+     * starErrorEstimate is small. Unforced, no lineages coalesce. Forced, every coalescence comes after the highest
+     * tip, at intensities spread uniformly up to the bound (the conditional distribution when the exponential factor
+     * is flat), and each joins a pair of the remaining lineages chosen at random.
+     */
+
+    public static SimpleNode[] simulateStar(SimpleNode[] tips, DemographicFunction demogFunct, double bound,
+                                            boolean forceCoalescence, MersenneTwisterFast random){
+        if(!forceCoalescence || tips.length < 2){
+            return Arrays.copyOf(tips, tips.length);
+        }
+
+        double highest = Double.NEGATIVE_INFINITY;
+        for(SimpleNode tip : tips){
+            highest = Math.max(highest, tip.getHeight());
+        }
+
+        double startIntensity = demogFunct.getIntensity(highest);
+        double available = demogFunct.getIntensity(bound) - startIntensity;
+
+        double[] targets = new double[tips.length-1];
+        for(int i=0; i<targets.length; i++){
+            targets[i] = startIntensity + random.nextDouble()*available;
+        }
+        Arrays.sort(targets);
+
+        SimpleNode[] active = Arrays.copyOf(tips, tips.length);
+        int lineages = active.length;
+
+        for(double target : targets){
+            int first = random.nextInt(lineages);
+            int second = random.nextInt(lineages-1);
+            if(second >= first){
+                second++;
+            }
+
+            double height = demogFunct.getInverseIntensity(target);
+            height = Math.min(Math.max(height, highest), bound);
+
+            SimpleNode parent = new SimpleNode();
+            parent.setHeight(height);
+            parent.addChild(active[first]);
+            parent.addChild(active[second]);
+
+            active[first] = parent;
+            active[second] = active[lineages-1];
+            active[lineages-1] = null;
+            lineages--;
+        }
+
+        return new SimpleNode[]{active[0]};
+    }
+
+    public static double[] distinctHeights(SimpleNode[] tips){
+        SimpleNode[] sortedTips = sortByHeight(tips);
+
+        double[] heights = new double[sortedTips.length];
+        int count = 0;
+        for(SimpleNode tip : sortedTips){
+            if(count == 0 || tip.getHeight() != heights[count-1]){
+                heights[count] = tip.getHeight();
+                count++;
+            }
+        }
+        return Arrays.copyOf(heights, count);
+    }
+
+    private static SimpleNode[] sortByHeight(SimpleNode[] tips){
+        SimpleNode[] sorted = Arrays.copyOf(tips, tips.length);
+        Arrays.sort(sorted, new Comparator<SimpleNode>() {
+            public int compare(SimpleNode node1, SimpleNode node2) {
+                return Double.compare(node1.getHeight(), node2.getHeight());
+            }
+        });
+        return sorted;
+    }
+
+}
@@ -0,0 +1,1153 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.SimpleNode;
+import dr.evolution.tree.SimpleTree;
+import dr.evolution.util.Date;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.math.MathUtils;
+import dr.math.MersenneTwisterFast;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates virus trees within a transmission graph. Each unit gets a coalescent treelet running back from its
+ * samplings and the lineages it transmitted onwards to its own infection; treelets are then grafted together so
+ * that each transmitted lineage continues into the treelet of the unit it infected. One tree is produced for each
+ * lineage still present at the infection of each introduced case (exactly one per introduction if coalescence is
+ * forced).
+ * <p>
+ * To run within another program, build a TransmissionGraph, then call simulate() for a list of trees or makeTrees()
+ * to have each one passed to a TreeHandler as it is finished. TreeSimplifier gives the simple form of a tree; if only
+ * the simple form is wanted, setDetailedTrees(false) builds it directly, without transmission nodes or node
+ * attributes.
+ * <p>
+ * Each unit's treelet is drawn from its own generator, seeded from the master seed and the unit's id, so a tree
+ * depends only on the master seed and the events descending from its introduction; any one tree can be regenerated
+ * by simulating its introduction alone. The master seed is drawn from MathUtils unless it is set.
+ * <p>
+ * simulateHosts() gives the trees of a few hosts' samples alone, simulating only the hosts on their chains of
+ * infection back to their introductions.
+ *
+ * @author mhall
+ */
+
+public class VirusTreeSimulator {
+
+    private PrintStream progressStream = System.out;
+
+    private DemographicFunction demFunct;
+    private boolean forceCoalescence;
+    private boolean numberedTips;
+    private boolean detailedTrees;
+    private boolean eventDriven;
+
+    // null unless the intensity profiles of treelet shapes are being cached
+    private IntensityProfileCache profileCache;
+
+    // incremental mode only
+    private TreeletCache treeletCache;
+
+    private long masterSeed;
+
+    // null to simulate every introduction
+    private HashSet<String> selectedIntroductions;
+
+    private int shard = 1;
+    private int shardCount = 1;
+
+    private SimulationMetrics metrics;
+
+    // null unless forced coalescence is replaced by importance weighting
+    private ImportanceWeights importanceWeights;
+
+    // zero unless hosts whose estimated error is no more than this are given the star-like approximation
+    private double approximationTolerance;
+    private AtomicLong approximatedHosts = new AtomicLong();
+
+    private int threadCount = 1;
+
+    // nanoseconds spent simulating and grafting treelets, across all threads
+    private AtomicLong busyTime = new AtomicLong();
+
+    public VirusTreeSimulator(DemographicFunction demFunct){
+        this.demFunct = demFunct;
+        forceCoalescence = true;
+        numberedTips = true;
+        detailedTrees = true;
+        masterSeed = MathUtils.nextLong();
+    }
+
+    // whether all lineages in a unit must coalesce before its infection, or incomplete bottlenecks are allowed
+
+    public void setForceCoalescence(boolean forceCoalescence){
+        this.forceCoalescence = forceCoalescence;
+    }
+
+    public boolean isForceCoalescence(){
+        return forceCoalescence;
+    }
+
+    // if false, tips are only numbered where an event has more than one instance
+
+    public void setNumberedTips(boolean numberedTips){
+        this.numberedTips = numberedTips;
+    }
+
+    // if false, trees are made in simple form: no degree-one transmission nodes and no "Event" or "Unit" attributes
+
+    public void setDetailedTrees(boolean detailedTrees){
+        this.detailedTrees = detailedTrees;
+    }
+
+    // if true, each introduction's genealogy is simulated in one sweep by EventDrivenCoalescent rather than as
+    // grafted treelets; the treelet and profile caches are then not used
+
+    public void setEventDriven(boolean eventDriven){
+        this.eventDriven = eventDriven;
+    }
+
+    public void setProfileCache(IntensityProfileCache profileCache){
+        this.profileCache = profileCache;
+    }
+
+    // incremental mode: treelets of unchanged units are taken from the cache (only useful with a fixed master seed)
+
+    public void setTreeletCache(TreeletCache treeletCache){
+        this.treeletCache = treeletCache;
+    }
+
+    public void setMasterSeed(long masterSeed){
+        this.masterSeed = masterSeed;
+    }
+
+    public long getMasterSeed(){
+        return masterSeed;
+    }
+
+    // only simulate the introductions with these ids (as in the output file names)
+
+    public void setIntroductions(Collection<String> ids){
+        selectedIntroductions = new HashSet<String>(ids);
+    }
+
+    // only simulate the introductions that Shards assigns to this shard (counted from 1)
+
+    public void setShard(int shard, int shardCount){
+        this.shard = shard;
+        this.shardCount = shardCount;
+    }
+
+    // with more than one thread, introductions are simulated in parallel, the most expensive first, and large clades
+    // are split into subtrees simulated in parallel; the trees are the same whatever the number of threads
+
+    public void setThreadCount(int threadCount){
+        if(threadCount < 1){
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threadCount = threadCount;
+    }
+
+    public void setMetrics(SimulationMetrics metrics){
+        this.metrics = metrics;
+    }
+
+    public SimulationMetrics getMetrics(){
+        return metrics;
+    }
+
+    // importance-weighted mode: in each unit's last interval before infection, coalescence times are drawn from
+    // the distribution truncated at the infection rather than retried until all lineages coalesce, and each tree
+    // carries the log of its weight (the product of the chances of the truncated draws) as "logImportanceWeight".
+    // The weights are relative to forced coalescence, which the event-driven engine insists on. The treelet cache
+    // is not used.
+
+    public void setImportanceWeights(ImportanceWeights importanceWeights){
+        this.importanceWeights = importanceWeights;
+    }
+
+    public ImportanceWeights getImportanceWeights(){
+        return importanceWeights;
+    }
+
+    // approximate mode: a host whose treelet TreeletCoalescent.starErrorEstimate puts within this tolerance of the
+    // exact coalescent (typically one with a large population relative to the time between its samples and infection)
+    // is simulated by TreeletCoalescent.simulateStar instead, and reported. Zero, the default, turns this off. Only
+    // the treelet engine approximates, the treelet cache is not used, and hosts are not approximated in
+    // importance-weighted mode.
+
+    public void setApproximationTolerance(double approximationTolerance){
+        if(approximationTolerance < 0 || approximationTolerance > 1){
+            throw new IllegalArgumentException("The approximation tolerance must be between 0 and 1");
+        }
+        this.approximationTolerance = approximationTolerance;
+    }
+
+    // where progress messages and warnings go, System.out by default
+
+    public void setProgressStream(PrintStream progressStream){
+        this.progressStream = progressStream;
+    }
+
+    public DemographicFunction getDemographicFunction(){
+        return demFunct;
+    }
+
+    // each tree goes to the handler as soon as it is complete; it has the id of the introduced case as the
+    // "firstCase" attribute, the lineage number as the "TransmittedLineage" attribute of its root and, in the
+    // detailed form, "Event" and "Unit" node attributes
+
+    public void makeTrees(TransmissionGraph graph, TreeHandler handler) throws IOException{
+
+        // find the first case
+
+        List<InfectedUnit> introducedCases = graph.getIntroductions();
+
+        if(introducedCases.size()==0){
+            throw new RuntimeException("Can't find a first case");
+        }
+
+        IdentityHashMap<InfectedUnit, Integer> shards = null;
+
+        if(shardCount > 1){
+            ArrayList<InfectedUnit> sampledIntroductions = new ArrayList<InfectedUnit>();
+            for(InfectedUnit introduction : introducedCases){
+                if(introduction.childEvents.size()>0){
+                    sampledIntroductions.add(introduction);
+                }
+            }
+            shards = Shards.assign(sampledIntroductions, shardCount);
+        }
+
+        ArrayList<InfectedUnit> toSimulate = new ArrayList<InfectedUnit>();
+
+        for(InfectedUnit introduction : introducedCases) {
+            if(introduction.childEvents.size()>0) {
+
+                if(shards!=null && shards.get(introduction)!=shard){
+                    continue;
+                }
+
+                if(selectedIntroductions!=null && !selectedIntroductions.contains(introduction.id)){
+                    continue;
+                }
+
+                toSimulate.add(introduction);
+            }
+        }
+
+        if(threadCount > 1){
+            makeTreesInParallel(toSimulate, handler);
+        } else {
+            for(InfectedUnit introduction : toSimulate){
+                simulateIntroduction(introduction, handler, Double.POSITIVE_INFINITY, null);
+            }
+        }
+    }
+
+    // largest predicted cost first; subtrees costing more than a share of the total become tasks of their own
+
+    private void makeTreesInParallel(ArrayList<InfectedUnit> introductions, final TreeHandler handler)
+            throws IOException{
+        final IntroductionCosts costs = new IntroductionCosts(demFunct, forceCoalescence);
+
+        double totalCost = 0;
+        double largestCost = 0;
+        for(InfectedUnit introduction : introductions){
+            double cost = costs.getCladeCost(introduction);
+            totalCost += cost;
+            largestCost = Math.max(largestCost, cost);
+        }
+
+        ArrayList<InfectedUnit> ordered = new ArrayList<InfectedUnit>(introductions);
+        Collections.sort(ordered, new Comparator<InfectedUnit>() {
+            public int compare(InfectedUnit u1, InfectedUnit u2) {
+                int result = Double.compare(costs.getCladeCost(u2), costs.getCladeCost(u1));
+                if(result==0){
+                    result = u1.id.compareTo(u2.id);
+                }
+                return result;
+            }
+        });
+
+        final double splitThreshold = totalCost/(threadCount*8);
+
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        ArrayList<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+
+        long startTime = System.nanoTime();
+        long startBusyTime = busyTime.get();
+
+        try {
+            for(final InfectedUnit introduction : ordered){
+                tasks.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        simulateIntroduction(introduction, handler, splitThreshold, costs);
+                        return null;
+                    }
+                }));
+            }
+
+            for(ForkJoinTask<Void> task : tasks){
+                try {
+                    task.get();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while simulating");
+                } catch (ExecutionException e){
+                    if(e.getCause() instanceof IOException){
+                        throw (IOException)e.getCause();
+                    }
+                    throw new RuntimeException("Simulation failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double wallTime = System.nanoTime() - startTime;
+        double busy = busyTime.get() - startBusyTime;
+
+        progressStream.println("Simulated " + ordered.size() + " introductions on " + threadCount + " threads in " +
+                (wallTime/1E9) + " s; threads were busy " + (100*busy/(wallTime*threadCount)) + "% of the time");
+        if(totalCost > 0){
+            progressStream.println("The largest introduction was " + (100*largestCost/totalCost) + "% of the " +
+                    "predicted cost");
+        }
+    }
+
+    private void simulateIntroduction(InfectedUnit introduction, TreeHandler handler, double splitThreshold,
+                                      IntroductionCosts costs) throws IOException{
+        long startTime = System.nanoTime();
+
+        progressStream.println("Building tree(s) for descendants of " + introduction.id);
+        Subtree subtree;
+        if(eventDriven){
+            EventDrivenCoalescent engine = new EventDrivenCoalescent(demFunct, forceCoalescence, detailedTrees,
+                    numberedTips, importanceWeights!=null, masterSeed, progressStream);
+            subtree = new Subtree();
+            subtree.roots = engine.simulate(introduction);
+            subtree.coalescentProbability = engine.getCoalescentProbability();
+            subtree.logWeight = engine.getLogWeight();
+            busyTime.addAndGet(System.nanoTime() - startTime);
+        } else {
+            subtree = makeSubtree(introduction, splitThreshold, costs);
+        }
+
+        long graftedTime = System.nanoTime();
+
+        int tipCount = 0;
+
+        for(int i=0; i<subtree.roots.size(); i++) {
+
+            FlexibleNode outTreeRoot = subtree.roots.get(i);
+            if(!detailedTrees){
+                outTreeRoot.setAttribute("TransmittedLineage", i+1);
+            }
+
+            FlexibleTree finalTree = new FlexibleTree(outTreeRoot, false, true);
+            finalTree.setAttribute("firstCase", introduction.id);
+            if(importanceWeights!=null){
+                finalTree.setAttribute("logImportanceWeight", subtree.logWeight);
+            }
+            tipCount += finalTree.getExternalNodeCount();
+            handler.handle(finalTree);
+
+        }
+
+        busyTime.addAndGet(System.nanoTime() - graftedTime);
+
+        if(subtree.roots.size()==0){
+            progressStream.println("This individual has no sampled descendants");
+        }
+        if(subtree.approximatedHosts.size() > 0){
+            StringBuilder hosts = new StringBuilder();
+            for(String id : subtree.approximatedHosts){
+                hosts.append(hosts.length()==0 ? "" : ", ").append(id);
+            }
+            progressStream.println("Approximated the coalescent in " + subtree.approximatedHosts.size() +
+                    " host(s), largest error estimate " + subtree.approximationError + ": " + hosts);
+        }
+        if (subtree.coalescentProbability < 0.9 & forceCoalescence) {
+            progressStream.println("WARNING: any phylogeny for descendants of " + introduction.id + " is quite " +
+                    "improbable (p<" + (subtree.coalescentProbability) + ") given this demographic function. " +
+                    "Consider another.");
+        }
+
+        if(importanceWeights!=null && subtree.roots.size() > 0){
+            importanceWeights.record(introduction.id, subtree.roots.size(), subtree.logWeight);
+        }
+
+        if(metrics!=null){
+            metrics.record(introduction.id, Shards.getSampleCount(introduction), subtree.roots.size(),
+                    tipCount, subtree.coalescentProbability, System.nanoTime() - startTime);
+        }
+
+        progressStream.println();
+    }
+
+    // as above, but returns the detailed trees rather than passing them on
+
+    public List<FlexibleTree> simulate(TransmissionGraph graph){
+        final ArrayList<FlexibleTree> out = new ArrayList<FlexibleTree>();
+
+        try {
+            makeTrees(graph, new TreeHandler() {
+                public void handle(FlexibleTree tree) {
+                    synchronized (out) {
+                        out.add(tree);
+                    }
+                }
+            });
+        } catch (IOException e){
+            // the handler above never throws
+            throw new RuntimeException(e);
+        }
+
+        return out;
+    }
+
+    /**
+     * The trees of the samples of these hosts alone, distributed as the same samples' part of the trees from a full
+     * run. Only the hosts on the chains of infection from these hosts back to their introductions (the path hosts)
+     * have treelets simulated, so the cost follows the size of the query rather than of the outbreak.
+     * <p>
+     * Without forced coalescence, lineages that are not ancestors of the hosts' samples do not affect those that
+     * are, so each path host's treelet has only the samples of the chosen hosts and the lineages from the path hosts
+     * it infected. With forced coalescence every relevant event in a path host counts towards the condition, so its
+     * treelet is built from all of them as in a full run, with one stand-in lineage for each sampled clade off the
+     * path (one lineage is all such a clade can transmit), and everything else is pruned away afterwards; with the
+     * same seed the result is then exactly the full run's trees pruned to these hosts' samples. Only the treelet
+     * engine is used. Trees are pruned with their degree-one coalescent nodes removed, and where the query has
+     * samples in more than one introduction there is a tree (or, without forced coalescence, trees) for each.
+     */
+
+    public List<FlexibleTree> simulateHosts(TransmissionGraph graph, Collection<String> hostIds){
+        Query query = new Query();
+
+        ArrayList<InfectedUnit> introductions = new ArrayList<InfectedUnit>();
+
+        for(String id : hostIds){
+            InfectedUnit unit = graph.getUnit(id);
+            if(unit==null){
+                throw new RuntimeException("There is no host with id " + id);
+            }
+            query.selected.add(unit);
+
+            // up the chain of infection until it joins one already walked
+            while(unit!=null && query.path.add(unit)){
+                if(unit.parent==null){
+                    introductions.add(unit);
+                }
+                unit = unit.parent;
+            }
+        }
+
+        ArrayList<FlexibleTree> out = new ArrayList<FlexibleTree>();
+
+        for(InfectedUnit introduction : introductions){
+            Subtree subtree = makeQuerySubtree(introduction, query);
+
+            for(int i=0; i<subtree.roots.size(); i++){
+                FlexibleNode root = subtree.roots.get(i);
+                if(!detailedTrees){
+                    root.setAttribute("TransmittedLineage", i+1);
+                }
+
+                FlexibleNode prunedRoot = prune(root, query);
+                if(prunedRoot==null){
+                    continue;
+                }
+
+                FlexibleTree tree = new FlexibleTree(prunedRoot, false, true);
+                tree.setAttribute("firstCase", introduction.id);
+                if(importanceWeights!=null){
+                    tree.setAttribute("logImportanceWeight", subtree.logWeight);
+                }
+                out.add(tree);
+            }
+        }
+
+        return out;
+    }
+
+    // as makeSubtree, for the path hosts of a query
+
+    private Subtree makeQuerySubtree(InfectedUnit unit, Query query){
+        boolean wholeTreelet = forceCoalescence || importanceWeights!=null;
+
+        HashMap<Event, ArrayList<FlexibleNode>> eventToSubtreeRoots = new HashMap<Event, ArrayList<FlexibleNode>>();
+
+        ArrayList<Event> relevantEvents = new ArrayList<Event>();
+
+        Subtree subtree = new Subtree();
+
+        for(Event event : unit.childEvents){
+
+            if(event.type == EventType.INFECTION){
+
+                if(query.path.contains(event.infectee)){
+                    Subtree childSubtree = makeQuerySubtree(event.infectee, query);
+
+                    subtree.coalescentProbability *= childSubtree.coalescentProbability;
+                    subtree.logWeight += childSubtree.logWeight;
+                    subtree.approximatedHosts.addAll(childSubtree.approximatedHosts);
+                    subtree.approximationError = Math.max(subtree.approximationError,
+                            childSubtree.approximationError);
+
+                    if(childSubtree.roots.size() != 0){
+                        relevantEvents.add(event);
+                        eventToSubtreeRoots.put(event, childSubtree.roots);
+                    }
+                } else if(wholeTreelet && query.hasSamples(event.infectee)){
+                    relevantEvents.add(event);
+                    eventToSubtreeRoots.put(event, query.makeStandIn(detailedTrees));
+                }
+
+            } else if(event.type == EventType.SAMPLE && (wholeTreelet || query.selected.contains(unit))) {
+                relevantEvents.add(event);
+            }
+        }
+
+        IdentityHashMap<Taxon, Event> tipEvents = new IdentityHashMap<Taxon, Event>();
+
+        graftTreelet(unit, relevantEvents, eventToSubtreeRoots, tipEvents, subtree);
+
+        if(query.selected.contains(unit)){
+            for(Taxon taxon : tipEvents.keySet()){
+                if(tipEvents.get(taxon).type == EventType.SAMPLE){
+                    query.keptTaxa.add(taxon);
+                }
+            }
+        }
+
+        return subtree;
+    }
+
+    // the tree below root with only the query's samples left, or null if none of them are in it. Nodes left with
+    // one child are removed, apart from transmission nodes in detailed trees.
+
+    private FlexibleNode prune(FlexibleNode root, Query query){
+        ArrayList<FlexibleNode> preOrder = new ArrayList<FlexibleNode>();
+        ArrayList<FlexibleNode> stack = new ArrayList<FlexibleNode>();
+        stack.add(root);
+        while(!stack.isEmpty()){
+            FlexibleNode node = stack.remove(stack.size()-1);
+            preOrder.add(node);
+            for(int i=0; i<node.getChildCount(); i++){
+                stack.add(node.getChild(i));
+            }
+        }
+
+        Set<FlexibleNode> removed = Collections.newSetFromMap(new IdentityHashMap<FlexibleNode, Boolean>());
+
+        // children before parents, so each node sees its children already pruned
+        for(int i=preOrder.size()-1; i>=0; i--){
+            FlexibleNode node = preOrder.get(i);
+            if(node.getChildCount()==0){
+                if(!query.keptTaxa.contains(node.getTaxon())){
+                    removed.add(node);
+                }
+                continue;
+            }
+
+            for(int j=node.getChildCount()-1; j>=0; j--){
+                FlexibleNode child = node.getChild(j);
+                if(removed.contains(child)){
+                    node.removeChild(child);
+                } else if(child.getChildCount()==1 && isSpliceable(child)){
+                    FlexibleNode grandchild = child.getChild(0);
+                    child.removeChild(grandchild);
+                    grandchild.setLength(grandchild.getLength() + child.getLength());
+                    node.removeChild(child);
+                    node.addChild(grandchild);
+                }
+            }
+
+            if(node.getChildCount()==0){
+                removed.add(node);
+            }
+        }
+
+        if(removed.contains(root)){
+            return null;
+        }
+
+        while(root.getChildCount()==1 && isSpliceable(root)){
+            FlexibleNode child = root.getChild(0);
+            root.removeChild(child);
+            child.setLength(child.getLength() + root.getLength());
+            if(root.getAttribute("TransmittedLineage")!=null){
+                child.setAttribute("TransmittedLineage", root.getAttribute("TransmittedLineage"));
+            }
+            root = child;
+        }
+        return root;
+    }
+
+    // coalescent nodes have no "Event" attribute; in simple trees every node is a coalescent node or a tip
+
+    private boolean isSpliceable(FlexibleNode node){
+        return !detailedTrees || node.getAttribute("Event")==null;
+    }
+
+    // reports on and saves whatever caches were used
+
+    public void finish() throws IOException{
+        if(treeletCache!=null){
+            progressStream.println("Reused " + treeletCache.getHitCount() + " treelets from the cache, simulated "
+                    + treeletCache.getMissCount());
+            treeletCache.save();
+        }
+
+        if(profileCache!=null){
+            progressStream.println("Intensity profiles reused for " + profileCache.getHitCount() + " treelets, " +
+                    "computed for " + profileCache.getMissCount());
+        }
+
+        if(approximationTolerance > 0){
+            progressStream.println("Approximated the coalescent in " + approximatedHosts.get() + " host(s)");
+        }
+    }
+
+    // make the tree from this unit up. Infectees whose clades are predicted to cost at least splitThreshold are
+    // forked off to other threads; the results are used in the same order whichever thread made them.
+
+    private Subtree makeSubtree(InfectedUnit unit, final double splitThreshold, final IntroductionCosts costs){
+
+        HashMap<Event, ForkJoinTask<Subtree>> forked = new HashMap<Event, ForkJoinTask<Subtree>>();
+
+        if(costs!=null){
+            for(Event event : unit.childEvents){
+                if(event.type == EventType.INFECTION && costs.getCladeCost(event.infectee) >= splitThreshold){
+                    final InfectedUnit infectee = event.infectee;
+                    forked.put(event, new RecursiveTask<Subtree>() {
+                        protected Subtree compute() {
+                            return makeSubtree(infectee, splitThreshold, costs);
+                        }
+                    }.fork());
+                }
+            }
+        }
+
+        HashMap<Event, ArrayList<FlexibleNode>> eventToSubtreeRoots = new HashMap<Event, ArrayList<FlexibleNode>>();
+
+        ArrayList<Event> relevantEvents = new ArrayList<Event>();
+
+        Subtree subtree = new Subtree();
+
+        for(Event event : unit.childEvents){
+
+            if(event.type == EventType.INFECTION){
+
+                ForkJoinTask<Subtree> task = forked.get(event);
+                Subtree childSubtree = task!=null ? task.join() : makeSubtree(event.infectee, splitThreshold, costs);
+
+                subtree.coalescentProbability *= childSubtree.coalescentProbability;
+                subtree.logWeight += childSubtree.logWeight;
+                subtree.approximatedHosts.addAll(childSubtree.approximatedHosts);
+                subtree.approximationError = Math.max(subtree.approximationError, childSubtree.approximationError);
+
+                if(childSubtree.roots.size() != 0){
+                    relevantEvents.add(event);
+                    eventToSubtreeRoots.put(event, childSubtree.roots);
+                }
+
+            } else if(event.type == EventType.SAMPLE) {
+                relevantEvents.add(event);
+            }
+        }
+
+        return graftTreelet(unit, relevantEvents, eventToSubtreeRoots, new IdentityHashMap<Taxon, Event>(),
+                subtree);
+    }
+
+    // the unit's treelet, with the subtrees of its relevant infectees grafted on at the tips standing for their
+    // infections; the lineages left at its infection are added to the subtree's roots
+
+    private Subtree graftTreelet(InfectedUnit unit, ArrayList<Event> relevantEvents,
+                                 HashMap<Event, ArrayList<FlexibleNode>> eventToSubtreeRoots,
+                                 IdentityHashMap<Taxon, Event> tipEvents, Subtree subtree){
+        long startTime = System.nanoTime();
+
+        ArrayList<FlexibleTree> unitTreelets = makeTreelet(unit, relevantEvents, eventToSubtreeRoots, tipEvents,
+                subtree);
+
+        if(unitTreelets.size()==0){
+            return subtree;
+        }
+
+        ArrayList<FlexibleNode> out = subtree.roots;
+
+        for(FlexibleTree unitTreelet : unitTreelets){
+            out.add((FlexibleNode)unitTreelet.getRoot());
+        }
+
+        // one pass over the tips, grouping them by the transmission they stand for, in treelet order
+
+        HashMap<Event, ArrayList<FlexibleNode>> eventTips = new HashMap<Event, ArrayList<FlexibleNode>>();
+
+        for (FlexibleTree unitTreelet : unitTreelets) {
+            for (int i = 0; i < unitTreelet.getExternalNodeCount(); i++) {
+                FlexibleNode tip = (FlexibleNode) unitTreelet.getExternalNode(i);
+                Event tipEvent = tipEvents.get(tip.getTaxon());
+                if (tipEvent.type == EventType.INFECTION) {
+                    ArrayList<FlexibleNode> tips = eventTips.get(tipEvent);
+                    if (tips == null) {
+                        tips = new ArrayList<FlexibleNode>();
+                        eventTips.put(tipEvent, tips);
+                    }
+                    tips.add(tip);
+                }
+            }
+        }
+
+        // with simple trees a tip may be a treelet root, so the roots are found by position
+
+        IdentityHashMap<FlexibleNode, Integer> rootPositions = new IdentityHashMap<FlexibleNode, Integer>();
+        if (!detailedTrees) {
+            for (int i = 0; i < out.size(); i++) {
+                rootPositions.put(out.get(i), i);
+            }
+        }
+
+        for(Event event : relevantEvents){
+            if (event.type == EventType.INFECTION) {
+                ArrayList<FlexibleNode> relevantTips = eventTips.get(event);
+
+                if (relevantTips == null || relevantTips.size() != eventToSubtreeRoots.get(event).size()) {
+                    throw new RuntimeException("Numbers do not match");
+                }
+
+                for (int i = 0; i < relevantTips.size(); i++) {
+
+                    FlexibleNode tip = relevantTips.get(i);
+                    FlexibleNode root = eventToSubtreeRoots.get(event).get(i);
+
+                    if(detailedTrees){
+                        FlexibleNode firstSubtreeSplit = root.getChild(0);
+
+                        root.removeChild(firstSubtreeSplit);
+                        tip.addChild(firstSubtreeSplit);
+                    } else {
+                        // no transmission node; the infectee's subtree takes the place of the tip
+                        root.setLength(tip.getLength() + root.getLength());
+                        FlexibleNode parent = tip.getParent();
+                        if(parent!=null){
+                            parent.removeChild(tip);
+                            parent.addChild(root);
+                        } else {
+                            out.set(rootPositions.get(tip), root);
+                        }
+                    }
+                }
+            }
+        }
+
+        busyTime.addAndGet(System.nanoTime() - startTime);
+
+        return subtree;
+    }
+
+    // events are only relevant if there is a sampling event somewhere further up the tree. The event each tip
+    // stands for is put in tipEvents, keyed by its taxon.
+
+    private ArrayList<FlexibleTree> makeTreelet(InfectedUnit unit, ArrayList<Event> relevantEvents,
+                                                HashMap<Event, ArrayList<FlexibleNode>> eventToSubtreeRoots,
+                                                IdentityHashMap<Taxon, Event> tipEvents,
+                                                Subtree subtree){
+
+        ArrayList<FlexibleTree> out = new ArrayList<FlexibleTree>();
+
+        if(relevantEvents.size()==0){
+            return out;
+        }
+
+        // always, so that a run with the treelet cache gives the same trees as one without it
+        relevantEvents = canonicalOrder(relevantEvents);
+
+        double lastRelevantEventTime = Double.NEGATIVE_INFINITY;
+
+        for(Event event : relevantEvents){
+            if(event.time > lastRelevantEventTime){
+                lastRelevantEventTime = event.time;
+            }
+        }
+
+        double activeTime = lastRelevantEventTime - unit.infectionEvent.time;
+
+        ArrayList<SimpleNode> nodes = new ArrayList<SimpleNode>();
+
+        for(Event event : relevantEvents){
+            int lineages = getLineageCount(event, eventToSubtreeRoots);
+            for(int instanceCount = 0; instanceCount < lineages; instanceCount++){
+                Taxon taxon = new Taxon(getTipName(unit, event, instanceCount, lineages, numberedTips));
+                taxon.setDate(new Date(event.time - unit.infectionEvent.time, Units.Type.YEARS, false));
+                SimpleNode node = new SimpleNode();
+                node.setTaxon(taxon);
+                nodes.add(node);
+                node.setHeight(unit.infectionEvent.time - event.time);
+                tipEvents.put(taxon, event);
+                if(detailedTrees){
+                    node.setAttribute("Event", event);
+                }
+            }
+        }
+
+        ArrayList<FlexibleNode> treeletRoots;
+
+        if(nodes.size()>1){
+            long unitSeed = Seeds.derive(masterSeed, unit.id);
+            if(usesTreeletCache()){
+                treeletRoots = cachedCoalescent(unit, relevantEvents, eventToSubtreeRoots, nodes, activeTime,
+                        unitSeed, subtree);
+            } else {
+                treeletRoots = approximateCoalescent(unit, nodes, activeTime, unitSeed, subtree);
+                if(treeletRoots==null){
+                    treeletRoots = simulateCoalescent(nodes, activeTime, unitSeed, subtree);
+                }
+            }
+        } else {
+            treeletRoots = new ArrayList<FlexibleNode>();
+            FlexibleNode treeletRoot = new FlexibleNode(new SimpleTree(nodes.get(0)), nodes.get(0), true);
+            treeletRoot.setHeight(0);
+
+            treeletRoots.add(treeletRoot);
+        }
+
+        // add the root branch lengths
+
+        int counter = 0;
+
+        for(FlexibleNode treeletRoot : treeletRoots){
+            counter++;
+            if(!detailedTrees){
+                treeletRoot.setLength(activeTime - treeletRoot.getHeight());
+                out.add(new FlexibleTree(treeletRoot));
+                continue;
+            }
+            FlexibleNode infectionNode = new FlexibleNode();
+            infectionNode.setHeight(activeTime);
+            infectionNode.addChild(treeletRoot);
+            treeletRoot.setLength(activeTime - treeletRoot.getHeight());
+            infectionNode.setAttribute("Event", unit.infectionEvent);
+            infectionNode.setAttribute("TransmittedLineage", counter);
+
+            FlexibleTree aTree = new FlexibleTree(infectionNode);
+
+            for(int i=0; i<aTree.getNodeCount(); i++){
+                FlexibleNode node = (FlexibleNode)aTree.getNode(i);
+                node.setAttribute("Unit", unit.id);
+            }
+
+            out.add(aTree);
+        }
+
+        return out;
+    }
+
+    // a transmission contributes one tip for each lineage that reached the infectee's subtree roots
+
+    private int getLineageCount(Event event, HashMap<Event, ArrayList<FlexibleNode>> eventToSubtreeRoots){
+        if(event.type == EventType.INFECTION){
+            return eventToSubtreeRoots.get(event).size();
+        }
+        return event.instances;
+    }
+
+    static String getTipName(InfectedUnit unit, Event event, int instanceCount, int instances,
+                             boolean numberedTips){
+        boolean numbered = numberedTips || instances > 1;
+        if(event.type == EventType.INFECTION){
+            String name = event.infectee.id+"_infected_by_"+event.infector.id+"_"+event.time;
+            return numbered ? name+"_lineage_"+(instanceCount+1) : name;
+        } else {
+            return numbered ? unit.id + "_sampled_" + (instanceCount + 1) + "_" + event.time
+                    : unit.id+"_sampled_"+event.time;
+        }
+    }
+
+    // incremental mode: reuse this unit's treelet from the last run if nothing it depended on has changed. Each
+    // unit has its own seed, so an unchanged unit would have been given the same treelet anyway. Only the
+    // coalescent draw is reused; the treelet is still grafted into the tree as usual.
+
+    private ArrayList<FlexibleNode> cachedCoalescent(InfectedUnit unit, ArrayList<Event> relevantEvents,
+                                                     HashMap<Event, ArrayList<FlexibleNode>> eventToSubtreeRoots,
+                                                     ArrayList<SimpleNode> nodes, double activeTime, long unitSeed,
+                                                     Subtree subtree){
+
+        byte[] signature = TreeletCache.digest(treeletSignature(unit, relevantEvents, eventToSubtreeRoots,
+                unitSeed));
+
+        TreeletCache.Entry entry = treeletCache.get(unit.id, signature);
+
+        if(entry!=null){
+            recordCoalescentProbability(nodes, subtree);
+
+            FlexibleNode[] tips = new FlexibleNode[nodes.size()];
+            for(int i=0; i<nodes.size(); i++){
+                tips[i] = new FlexibleNode(nodes.get(i).getTaxon());
+                if(detailedTrees){
+                    tips[i].setAttribute("Event", nodes.get(i).getAttribute("Event"));
+                }
+            }
+            return entry.toTreelet(tips);
+        }
+
+        ArrayList<FlexibleNode> treeletRoots = simulateCoalescent(nodes, activeTime, unitSeed, subtree);
+
+        ArrayList<Taxon> tipTaxa = new ArrayList<Taxon>();
+        for(SimpleNode node : nodes){
+            tipTaxa.add(node.getTaxon());
+        }
+        treeletCache.put(unit.id, TreeletCache.Entry.fromTreelet(signature, treeletRoots, tipTaxa));
+
+        return treeletRoots;
+    }
+
+    private String treeletSignature(InfectedUnit unit, ArrayList<Event> relevantEvents,
+                                    HashMap<Event, ArrayList<FlexibleNode>> eventToSubtreeRoots, long unitSeed){
+        StringBuilder signature = new StringBuilder(demFunct.getClass().getName());
+        DemographicFunction described = demFunct;
+        if(demFunct instanceof TabulatedDemographic){
+            // a table has no parameters of its own, so describe its grid and what it tabulates
+            TabulatedDemographic table = (TabulatedDemographic)demFunct;
+            signature.append(',').append(table.getStart()).append(',').append(table.getEnd());
+            signature.append(',').append(table.getIntervalCount());
+            described = table.getExact();
+            signature.append(',').append(described.getClass().getName());
+        }
+        for(int i=0; i<described.getNumArguments(); i++){
+            signature.append(',').append(described.getArgument(i));
+        }
+        signature.append(';').append(forceCoalescence).append(';').append(unitSeed);
+        for(Event event : relevantEvents){
+            signature.append(';').append(event.type).append(',').append(event.time - unit.infectionEvent.time);
+            signature.append(',').append(getLineageCount(event, eventToSubtreeRoots));
+            if(event.type == EventType.INFECTION){
+                signature.append(',').append(event.infectee.id);
+            }
+        }
+        return signature.toString();
+    }
+
+    // an order that does not depend on the order of rows in the input files
+
+    private ArrayList<Event> canonicalOrder(ArrayList<Event> events){
+        ArrayList<Event> out = new ArrayList<Event>(events);
+        Collections.sort(out, new Comparator<Event>() {
+            public int compare(Event e1, Event e2) {
+                int result = Double.compare(e1.time, e2.time);
+                if(result==0){
+                    result = e1.type.compareTo(e2.type);
+                }
+                if(result==0 && e1.type == EventType.INFECTION){
+                    result = e1.infectee.id.compareTo(e2.infectee.id);
+                }
+                return result;
+            }
+        });
+        return out;
+    }
+
+    private void recordCoalescentProbability(ArrayList<SimpleNode> nodes, Subtree subtree){
+        double earliestNodeHeight = Double.NEGATIVE_INFINITY;
+
+        for(SimpleNode node : nodes){
+            if(node.getHeight()>earliestNodeHeight){
+                earliestNodeHeight = node.getHeight();
+            }
+        }
+        double maxLastInterval = earliestNodeHeight;
+        double probNoCoalescenceInTime = Math.exp(demFunct.getIntensity(maxLastInterval));
+
+        subtree.coalescentProbability *= (1-probNoCoalescenceInTime);
+    }
+
+    private boolean usesTreeletCache(){
+        return treeletCache!=null && importanceWeights==null && approximationTolerance==0;
+    }
+
+    // the star-like approximation of the unit's treelet, or null if it is off or its estimated error is too large
+
+    private ArrayList<FlexibleNode> approximateCoalescent(InfectedUnit unit, ArrayList<SimpleNode> nodes,
+                                                         double maxHeight, long unitSeed, Subtree subtree){
+        if(approximationTolerance==0 || importanceWeights!=null){
+            return null;
+        }
+
+        SimpleNode[] tips = nodes.toArray(new SimpleNode[nodes.size()]);
+        double error = TreeletCoalescent.starErrorEstimate(tips, demFunct, 0, forceCoalescence);
+        if(error > approximationTolerance){
+            return null;
+        }
+
+        recordCoalescentProbability(nodes, subtree);
+        subtree.approximatedHosts.add(unit.id);
+        subtree.approximationError = Math.max(subtree.approximationError, error);
+        approximatedHosts.incrementAndGet();
+
+        MersenneTwisterFast random = new MersenneTwisterFast(unitSeed);
+        return toTreeletRoots(TreeletCoalescent.simulateStar(tips, demFunct, 0, forceCoalescence, random),
+                maxHeight);
+    }
+
+    private ArrayList<FlexibleNode> simulateCoalescent(ArrayList<SimpleNode> nodes, double maxHeight, long unitSeed,
+                                                       Subtree subtree){
+
+        recordCoalescentProbability(nodes, subtree);
+
+        MersenneTwisterFast random = new MersenneTwisterFast(unitSeed);
+
+        SimpleNode[] simResults;
+
+        if(nodes.size()==2){
+            simResults = TreeletCoalescent.simulatePair(nodes.get(0), nodes.get(1), demFunct, 0,
+                    forceCoalescence || importanceWeights!=null, random);
+            if(importanceWeights!=null){
+                // the forced pair is drawn from its conditional distribution, so its weight is its chance of
+                // coalescing
+                double start = Math.max(nodes.get(0).getHeight(), nodes.get(1).getHeight());
+                subtree.logWeight += Math.log(-Math.expm1(demFunct.getIntensity(start) - demFunct.getIntensity(0)));
+            }
+        } else if(importanceWeights!=null){
+            SimpleNode[] tips = nodes.toArray(new SimpleNode[nodes.size()]);
+
+            double[] heights = TreeletCoalescent.distinctHeights(tips);
+            IntensityProfile profile = profileCache!=null ? profileCache.get(heights, 0, demFunct)
+                    : IntensityProfile.build(heights, 0, demFunct);
+
+            double[] logWeight = {0};
+            simResults = TreeletCoalescent.simulate(tips, profile, demFunct, random, logWeight);
+            subtree.logWeight += logWeight[0];
+        } else {
+            SimpleNode[] tips = nodes.toArray(new SimpleNode[nodes.size()]);
+
+            double[] heights = TreeletCoalescent.distinctHeights(tips);
+            IntensityProfile profile = profileCache!=null ? profileCache.get(heights, 0, demFunct)
+                    : IntensityProfile.build(heights, 0, demFunct);
+
+            int failCount = 0;
+
+            do {
+                simResults = TreeletCoalescent.simulate(tips, profile, demFunct, random);
+                if(simResults.length>1 & forceCoalescence){
+                    failCount++;
+                    progressStream.println("Failed to coalesce lineages: "+failCount);
+                }
+            } while(simResults.length!=1 & forceCoalescence);
+        }
+
+        return toTreeletRoots(simResults, maxHeight);
+    }
+
+    // the simulated lineages shifted from the infection frame to the treelet's own
+
+    private static ArrayList<FlexibleNode> toTreeletRoots(SimpleNode[] simResults, double maxHeight){
+        ArrayList<FlexibleNode> out = new ArrayList<FlexibleNode>();
+
+        for(SimpleNode root : simResults){
+            SimpleTree simpleTreelet = new SimpleTree(root);
+
+            for (int i=0; i<simpleTreelet.getNodeCount(); i++) {
+                SimpleNode node = (SimpleNode)simpleTreelet.getNode(i);
+                node.setHeight(node.getHeight() + maxHeight);
+            }
+
+            out.add(new FlexibleNode(simpleTreelet, root, true));
+        }
+
+        return out;
+    }
+
+    // what a query needs as its path hosts are simulated
+
+    private static class Query {
+        private Set<InfectedUnit> selected = Collections.newSetFromMap(new IdentityHashMap<InfectedUnit, Boolean>());
+        private Set<InfectedUnit> path = Collections.newSetFromMap(new IdentityHashMap<InfectedUnit, Boolean>());
+
+        // whether each clade off the path that has been looked at has any samples
+        private IdentityHashMap<InfectedUnit, Boolean> sampled = new IdentityHashMap<InfectedUnit, Boolean>();
+
+        // the tips of the chosen hosts' samples
+        private Set<Taxon> keptTaxa = Collections.newSetFromMap(new IdentityHashMap<Taxon, Boolean>());
+
+        private boolean hasSamples(InfectedUnit unit){
+            Boolean known = sampled.get(unit);
+            if(known==null){
+                known = false;
+                ArrayList<InfectedUnit> stack = new ArrayList<InfectedUnit>();
+                stack.add(unit);
+                // stops at the first sample found
+                while(!stack.isEmpty() && !known){
+                    InfectedUnit current = stack.remove(stack.size()-1);
+                    for(Event event : current.childEvents){
+                        if(event.type == EventType.SAMPLE){
+                            known = true;
+                            break;
+                        }
+                        stack.add(event.infectee);
+                    }
+                }
+                sampled.put(unit, known);
+            }
+            return known;
+        }
+
+        // the one lineage a sampled clade off the path transmits, shaped like a subtree's root so that it can be
+        // grafted on; it has no taxon, so it is pruned
+
+        private ArrayList<FlexibleNode> makeStandIn(boolean detailedTrees){
+            ArrayList<FlexibleNode> roots = new ArrayList<FlexibleNode>();
+            FlexibleNode lineage = new FlexibleNode();
+            if(detailedTrees){
+                FlexibleNode infectionNode = new FlexibleNode();
+                infectionNode.addChild(lineage);
+                roots.add(infectionNode);
+            } else {
+                roots.add(lineage);
+            }
+            return roots;
+        }
+    }
+
+    // the lineages leaving a unit's clade, the product of the chances of complete coalescence within it, in
+    // importance-weighted mode the sum of the log weights of its treelets, and the hosts in it that were
+    // approximated, with the largest estimated error among them
+
+    private static class Subtree {
+        private ArrayList<FlexibleNode> roots;
+        private double coalescentProbability;
+        private double logWeight;
+        private ArrayList<String> approximatedHosts;
+        private double approximationError;
+
+        private Subtree(){
+            roots = new ArrayList<FlexibleNode>();
+            coalescentProbability = 1;
+            logWeight = 0;
+            approximatedHosts = new ArrayList<String>();
+        }
+    }
+
+}
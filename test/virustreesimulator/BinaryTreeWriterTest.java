@@ -0,0 +1,124 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxon;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryTreeWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readerSeesWhatWasWritten() throws IOException{
+        FlexibleTree tree = TestTrees.random(500, 1, true);
+        BinaryTreeReader reader = writeAndRead(tree);
+
+        assertEquals(tree.getNodeCount(), reader.getNodeCount());
+        assertEquals(tree.getExternalNodeCount(), reader.getTipCount());
+        assertEquals(10, reader.getHostCount());
+
+        // the reader's nodes are in pre-order; walk the tree the same way alongside them
+        HashMap<NodeRef, Integer> numbers = new HashMap<NodeRef, Integer>();
+        NodeRef[] preOrder = preOrder(tree);
+        for(int i=0; i<preOrder.length; i++){
+            NodeRef node = preOrder[i];
+            numbers.put(node, i);
+            NodeRef parent = tree.getParent(node);
+
+            assertEquals(parent==null ? -1 : (int)numbers.get(parent), reader.getParent(i));
+            assertTrue(reader.getParent(i) < i);
+            assertEquals(tree.getNodeHeight(node), reader.getHeight(i), 0);
+            assertEquals(parent==null ? 0 : tree.getBranchLength(node), reader.getBranchLength(i), 0);
+            assertEquals(tree.isExternal(node), reader.isTip(i));
+            assertEquals(tree.isExternal(node) ? tree.getNodeTaxon(node).getId() : null, reader.getTipLabel(i));
+            assertEquals(tree.getNodeAttribute(node, "Unit"), reader.getHost(i));
+        }
+    }
+
+    @Test
+    public void rebuiltTreeMatches() throws IOException{
+        for(FlexibleTree tree : new FlexibleTree[]{TestTrees.random(300, 2, true), TestTrees.random(300, 3, false),
+                TestTrees.caterpillar(2000)}){
+            assertEquals(TestTrees.canonical(tree), TestTrees.canonical(writeAndRead(tree).readTree()));
+        }
+    }
+
+    @Test
+    public void keepsLabelsThatAreNotAscii() throws IOException{
+        FlexibleNode root = new FlexibleNode();
+        root.setHeight(1);
+        FlexibleNode first = new FlexibleNode(new Taxon("Z\u00fcrich_1"));
+        first.setAttribute("Unit", "S\u00e3o Paulo");
+        FlexibleNode second = new FlexibleNode(new Taxon("\u6771\u4eac_2"));
+        root.addChild(first);
+        root.addChild(second);
+
+        BinaryTreeReader reader = writeAndRead(TestTrees.makeTree(root));
+        assertEquals("Z\u00fcrich_1", reader.getTipLabel(1));
+        assertEquals("S\u00e3o Paulo", reader.getHost(1));
+        assertEquals("\u6771\u4eac_2", reader.getTipLabel(2));
+        assertNull(reader.getHost(2));
+        assertNull(reader.getTipLabel(0));
+    }
+
+    @Test
+    public void writesTheSameBytesToFileAndMemory() throws IOException{
+        FlexibleTree tree = TestTrees.random(200, 4, true);
+        File file = folder.newFile("direct.vtb");
+        BinaryTreeWriter.writeTree(tree, file.getPath());
+        assertArrayEquals(BinaryTreeWriter.toBytes(tree), Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException{
+        File file = folder.newFile("other.vtb");
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(new byte[]{'#', 'N', 'E', 'X', 'U', 'S', 0, 0});
+        stream.close();
+        new BinaryTreeReader(file.getPath());
+    }
+
+    private BinaryTreeReader writeAndRead(FlexibleTree tree) throws IOException{
+        File file = folder.newFile();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(BinaryTreeWriter.toBytes(tree));
+        } finally {
+            stream.close();
+        }
+        return new BinaryTreeReader(file.getPath());
+    }
+
+    private static NodeRef[] preOrder(FlexibleTree tree){
+        NodeRef[] out = new NodeRef[tree.getNodeCount()];
+        ArrayDeque<NodeRef> stack = new ArrayDeque<NodeRef>();
+        stack.push(tree.getRoot());
+        int next = 0;
+        while(!stack.isEmpty()){
+            NodeRef node = stack.pop();
+            out[next++] = node;
+            for(int i=tree.getChildCount(node)-1; i>=0; i--){
+                stack.push(tree.getChild(node, i));
+            }
+        }
+        return out;
+    }
+
+}
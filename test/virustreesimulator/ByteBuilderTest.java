@@ -0,0 +1,116 @@
+package virustreesimulator;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ByteBuilderTest {
+
+    private static final int[] PRECISIONS = {1, 2, 3, 6, 15, 16, 17};
+
+    @Test
+    public void powersOfTenAndTheirNeighbours(){
+        for(int exponent=-9; exponent<=18; exponent++){
+            double power = Double.parseDouble("1E" + exponent);
+            for(int precision : PRECISIONS){
+                check(power, precision);
+                check(Math.nextUp(power), precision);
+                check(Math.nextDown(power), precision);
+                check(-power, precision);
+            }
+        }
+    }
+
+    @Test
+    public void tiesRoundHalfUp(){
+        double[] ties = {0.5, 1.5, 2.5, 0.125, 0.375, 0.0625, 12345.5, 1.25E-5, 2.5E14, 4503599627370497.0,
+                0.000030517578125, 1.05, 2.675, 0.015, 1.0000000000000005};
+        for(double tie : ties){
+            for(int precision=1; precision<=ByteBuilder.MAX_PRECISION; precision++){
+                check(tie, precision);
+            }
+        }
+    }
+
+    @Test
+    public void ninesCarryIntoTheNextDigit(){
+        double[] nines = {9.5, 9.95, 9.995, 99.95, 999.9999, 0.0995, 0.000099996, 9.9999E-6, 9.99999999E-6,
+                9.999999E14, 9.9999999999999E14, 999999999999999.9, 9.99E15, 0.99999999999999999};
+        for(double value : nines){
+            for(int precision=1; precision<=ByteBuilder.MAX_PRECISION; precision++){
+                check(value, precision);
+                check(-value, precision);
+            }
+        }
+    }
+
+    @Test
+    public void theFormDependsOnTheRoundedValue(){
+        assertEquals("0.00001", format(9.9999E-6, 3));
+        // BigDecimal.toString only switches to an exponent below 1E-6
+        assertEquals("0.0000099999", format(9.9999E-6, 5));
+        assertEquals("0.00001", format(1E-5, 1));
+        assertEquals("1.234E-7", format(1.234E-7, 4));
+        assertEquals("1E+15", format(999999999999999.9, 3));
+        assertEquals("100000000000000", format(99999999999999.9, 3));
+        assertEquals("1E+16", format(1E16, 1));
+        assertEquals("0.125", format(0.125, 3));
+        assertEquals("0.13", format(0.125, 2));
+        assertEquals("-2", format(-1.5, 1));
+        assertEquals("0", format(-0.0, 5));
+        assertEquals("0.1", format(0.1, 0));
+        assertEquals("NaN", format(Double.NaN, 4));
+    }
+
+    @Test
+    public void randomValuesMatchBigDecimal(){
+        Random random = new Random(7);
+        for(int i=0; i<200000; i++){
+            double value = random.nextDouble()*Math.pow(10, random.nextInt(26) - 9);
+            if(random.nextBoolean()){
+                value = -value;
+            }
+            check(value, 1 + random.nextInt(ByteBuilder.MAX_PRECISION));
+        }
+    }
+
+    @Test
+    public void randomShortDecimalsMatchBigDecimal(){
+        // values like these sit exactly on or next to the halves that the fast path has to hand over
+        Random random = new Random(11);
+        for(int i=0; i<200000; i++){
+            int digits = 1 + random.nextInt(8);
+            long mantissa = (long)(random.nextDouble()*Math.pow(10, digits));
+            double value = Double.parseDouble(mantissa + "5E" + (random.nextInt(20) - 10));
+            check(value, 1 + random.nextInt(digits + 1));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyDigits(){
+        format(1.0, ByteBuilder.MAX_PRECISION + 1);
+    }
+
+    private static void check(double value, int precision){
+        assertEquals(value + " to " + precision + " digits", expected(value, precision), format(value, precision));
+    }
+
+    private static String format(double value, int precision){
+        return new String(new ByteBuilder(16).append(value, precision).toByteArray(), BinaryTreeWriter.UTF8);
+    }
+
+    private static String expected(double value, int precision){
+        if(value==0){
+            return "0";
+        }
+        BigDecimal rounded = new BigDecimal(Math.abs(value)).round(new MathContext(precision)).stripTrailingZeros();
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        String out = exponent >= -5 && exponent < 15 ? rounded.toPlainString() : rounded.toString();
+        return value < 0 ? "-" + out : out;
+    }
+
+}
@@ -0,0 +1,136 @@
+package virustreesimulator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CsvTokenizerTest {
+
+    @Test
+    public void splitsPlainAndQuotedFields() throws IOException{
+        CsvTokenizer tokenizer = tokenizer("a,b,,d\n\"x, y\",\"say \"\"hi\"\"\",\"\"\n");
+        assertTrue(tokenizer.nextRow());
+        assertEquals(4, tokenizer.getFieldCount());
+        assertEquals("a", tokenizer.getString(0));
+        assertEquals("", tokenizer.getString(2));
+        assertEquals("d", tokenizer.getString(3));
+
+        assertTrue(tokenizer.nextRow());
+        assertEquals(3, tokenizer.getFieldCount());
+        assertEquals("x, y", tokenizer.getString(0));
+        assertEquals("say \"hi\"", tokenizer.getString(1));
+        assertTrue(tokenizer.fieldEquals(1, "say \"hi\""));
+        assertFalse(tokenizer.fieldEquals(1, "say hi"));
+        assertEquals("", tokenizer.getString(2));
+        assertFalse(tokenizer.nextRow());
+    }
+
+    @Test
+    public void handlesEveryLineBreakAndSkipsEmptyRows() throws IOException{
+        CsvTokenizer tokenizer = tokenizer("a\r\nb\rc\n\n\r\nd,\"two\nlines\"");
+        String[] expected = {"a", "b", "c", "d"};
+        long[] rows = {1, 2, 3, 6};
+        for(int i=0; i<expected.length; i++){
+            assertTrue(tokenizer.nextRow());
+            assertEquals(expected[i], tokenizer.getString(0));
+            assertEquals(rows[i], tokenizer.getRowNumber());
+        }
+        assertEquals("two\nlines", tokenizer.getString(1));
+        assertFalse(tokenizer.nextRow());
+    }
+
+    @Test
+    public void readsLongRowsAndManyFields() throws IOException{
+        StringBuilder row = new StringBuilder();
+        for(int i=0; i<1000; i++){
+            row.append(i==0 ? "" : ",").append("field_").append(i);
+        }
+        // long enough to cross the read buffer several times
+        StringBuilder input = new StringBuilder();
+        for(int i=0; i<200; i++){
+            input.append(row).append('\n');
+        }
+        CsvTokenizer tokenizer = tokenizer(input.toString());
+        for(int i=0; i<200; i++){
+            assertTrue(tokenizer.nextRow());
+            assertEquals(1000, tokenizer.getFieldCount());
+            assertEquals("field_999", tokenizer.getString(999));
+            assertEquals(500, tokenizer.findField("field_500"));
+        }
+        assertEquals(-1, tokenizer.findField("field_1000"));
+        assertFalse(tokenizer.nextRow());
+    }
+
+    @Test
+    public void parsesIntegers() throws IOException{
+        CsvTokenizer tokenizer = tokenizer("0,-17,+5,2147483647,-2147483648, 12 ,007\n");
+        tokenizer.nextRow();
+        int[] expected = {0, -17, 5, Integer.MAX_VALUE, Integer.MIN_VALUE, 12, 7};
+        for(int i=0; i<expected.length; i++){
+            assertEquals(expected[i], tokenizer.getInt(i));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsIntegersThatOverflow() throws IOException{
+        CsvTokenizer tokenizer = tokenizer("2147483648\n");
+        tokenizer.nextRow();
+        tokenizer.getInt(0);
+    }
+
+    @Test
+    public void parsesDoublesAsDoubleParseDoubleDoes() throws IOException{
+        String[] fixed = {"0", "-0", "1", "0.1", "-2.5", "+3.25", ".5", "5.", "1E-7", "2.5e10", "123456789012345",
+                "1234567890123456789", "0.000000000000000000000001", "3.141592653589793238", " 4.5 ", "1e400",
+                "Infinity", "NaN"};
+        StringBuilder input = new StringBuilder();
+        for(String value : fixed){
+            input.append('"').append(value).append("\",");
+        }
+        Random random = new Random(1);
+        String[] randoms = new String[10000];
+        for(int i=0; i<randoms.length; i++){
+            double value = Math.pow(10, random.nextInt(30) - 15)*random.nextDouble();
+            // plain decimals of up to 17 significant digits, on both sides of the fast path's limit
+            randoms[i] = new BigDecimal(value).round(new MathContext(1 + random.nextInt(17))).toPlainString();
+            input.append(randoms[i]).append(i==randoms.length-1 ? "\n" : ",");
+        }
+
+        CsvTokenizer tokenizer = tokenizer(input.toString());
+        assertTrue(tokenizer.nextRow());
+        for(int i=0; i<fixed.length; i++){
+            assertEquals(fixed[i], Double.parseDouble(fixed[i].trim()), tokenizer.getDouble(i), 0);
+        }
+        for(int i=0; i<randoms.length; i++){
+            assertEquals(randoms[i], Double.parseDouble(randoms[i]), tokenizer.getDouble(fixed.length + i), 0);
+        }
+    }
+
+    @Test
+    public void reportsMissingFields() throws IOException{
+        CsvTokenizer tokenizer = tokenizer("a,b\n");
+        tokenizer.nextRow();
+        try {
+            tokenizer.getString(2);
+            fail("a missing field was read");
+        } catch (RuntimeException e){
+            assertTrue(e.getMessage().contains("Row 1"));
+        }
+    }
+
+    private static CsvTokenizer tokenizer(String input){
+        Reader reader = new StringReader(input);
+        return new CsvTokenizer(reader);
+    }
+
+}
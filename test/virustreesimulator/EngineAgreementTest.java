@@ -0,0 +1,140 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Units;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+// the treelet and event-driven engines, each on its own seeds, should give the same distribution of trees
+
+public class EngineAgreementTest {
+
+    private static final int RUNS = 3000;
+
+    // how many standard errors apart the two means may be
+    private static final double Z_LIMIT = 4;
+
+    @Test
+    public void forcedTreesAgree(){
+        Summary[] summaries = new Summary[2];
+        for(int engine=0; engine<2; engine++){
+            summaries[engine] = new Summary(2);
+            for(int run=0; run<RUNS; run++){
+                List<FlexibleTree> trees = simulate(engine==1, true, engine*RUNS + run + 1);
+                FlexibleTree tree = trees.get(0);
+                LcaIndex index = new LcaIndex(tree);
+                NodeRef a = index.getTip("A_sampled_1_3.0");
+                NodeRef b = index.getTip("B_sampled_1_2.0");
+                NodeRef c = index.getTip("C_sampled_1_4.0");
+
+                summaries[engine].add(0, distanceAbove(tree, c, tree.getRoot()));
+                summaries[engine].add(1, distanceAbove(tree, a, index.getLca(a, b)));
+            }
+        }
+        assertAgree("root height", summaries, 0);
+        assertAgree("TMRCA of A and B", summaries, 1);
+    }
+
+    @Test
+    public void unforcedTreesAgree(){
+        Summary[] summaries = new Summary[2];
+        for(int engine=0; engine<2; engine++){
+            summaries[engine] = new Summary(2);
+            for(int run=0; run<RUNS; run++){
+                List<FlexibleTree> trees = simulate(engine==1, false, engine*RUNS + run + 1);
+                summaries[engine].add(0, trees.size());
+                for(FlexibleTree tree : trees){
+                    NodeRef a = new LcaIndex(tree).getTip("A_sampled_1_3.0");
+                    if(a!=null){
+                        summaries[engine].add(1, distanceAbove(tree, a, tree.getRoot()));
+                    }
+                }
+            }
+        }
+        assertAgree("number of trees", summaries, 0);
+        assertAgree("root height above A's sample", summaries, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void eventDrivenImportanceWeightingNeedsForcing(){
+        new EventDrivenCoalescent(population(), false, true, true, true, 1, System.out);
+    }
+
+    private static List<FlexibleTree> simulate(boolean eventDriven, boolean forced, long seed){
+        TransmissionGraph graph = new TransmissionGraph();
+        graph.addIntroduction("A", 0.0);
+        graph.addInfection("A", "B", 1.5);
+        graph.addInfection("B", "C", 2.5);
+        graph.addSampling("A", 3.0, 2);
+        graph.addSampling("B", 2.0, 2);
+        graph.addSampling("C", 4.0, 3);
+
+        VirusTreeSimulator simulator = new VirusTreeSimulator(population());
+        simulator.setMasterSeed(seed);
+        simulator.setEventDriven(eventDriven);
+        simulator.setForceCoalescence(forced);
+        simulator.setDetailedTrees(false);
+        simulator.setProgressStream(new PrintStream(new ByteArrayOutputStream()));
+        return simulator.simulate(graph);
+    }
+
+    private static ConstantPopulation population(){
+        ConstantPopulation population = new ConstantPopulation(Units.Type.YEARS);
+        population.setN0(1.0);
+        return population;
+    }
+
+    // the length of the path from node up to its ancestor, which does not depend on how heights are measured
+
+    private static double distanceAbove(FlexibleTree tree, NodeRef node, NodeRef ancestor){
+        double out = 0;
+        while(node!=ancestor){
+            out += tree.getBranchLength(node);
+            node = tree.getParent(node);
+        }
+        return out;
+    }
+
+    private static void assertAgree(String statistic, Summary[] summaries, int i){
+        double difference = summaries[0].mean(i) - summaries[1].mean(i);
+        double error = Math.sqrt(summaries[0].meanVariance(i) + summaries[1].meanVariance(i));
+        assertTrue("Mean " + statistic + ": treelet " + summaries[0].mean(i) + ", event-driven " +
+                summaries[1].mean(i) + ", standard error " + error, Math.abs(difference) <= Z_LIMIT*error);
+    }
+
+    private static class Summary {
+        private long[] counts;
+        private double[] sums;
+        private double[] squares;
+
+        private Summary(int statistics){
+            counts = new long[statistics];
+            sums = new double[statistics];
+            squares = new double[statistics];
+        }
+
+        private void add(int i, double value){
+            counts[i]++;
+            sums[i] += value;
+            squares[i] += value*value;
+        }
+
+        private double mean(int i){
+            return sums[i]/counts[i];
+        }
+
+        // the variance of the mean
+        private double meanVariance(int i){
+            double mean = mean(i);
+            return (squares[i]/counts[i] - mean*mean)/(counts[i] - 1);
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package virustreesimulator;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class InfectedUnitTest {
+
+    @Test
+    public void samplingsAtTheSameTimeAsTheFirstAreMerged(){
+        InfectedUnit unit = new InfectedUnit("A");
+        unit.addSamplingEvent(2.0, 1);
+        unit.addSamplingEvent(2.0, 3);
+
+        List<Event> events = unit.getChildEvents();
+        assertEquals(1, events.size());
+        assertEquals(4, events.get(0).getInstances());
+    }
+
+    @Test
+    public void samplingsAreMergedOnceThereAreSeveralTimes(){
+        InfectedUnit unit = new InfectedUnit("A");
+        unit.addSamplingEvent(2.0, 1);
+        unit.addSamplingEvent(3.0, 2);
+        unit.addInfectionEvent(new Event(EventType.INFECTION, 2.5, unit, new InfectedUnit("B")));
+        // the first time, now looked up in the map along with the rest
+        unit.addSamplingEvent(2.0, 4);
+        unit.addSamplingEvent(3.0, 1);
+        unit.addSamplingEvent(4.0, 5);
+        unit.addSamplingEvent(4.0, 1);
+
+        List<Event> events = unit.getChildEvents();
+        assertEquals(4, events.size());
+        assertSampling(events.get(0), 2.0, 5);
+        assertSampling(events.get(1), 3.0, 3);
+        assertEquals(EventType.INFECTION, events.get(2).getType());
+        assertSampling(events.get(3), 4.0, 6);
+    }
+
+    @Test
+    public void graphMergesSamplingRowsAtTheSameTime(){
+        TransmissionGraph graph = new TransmissionGraph();
+        graph.addIntroduction("A", 0.0);
+        graph.addSampling("A", 1.0, 1);
+        graph.addSampling("A", 1.5, 1);
+        graph.addSampling("A", 1.0, 2);
+
+        List<Event> events = graph.getUnit("A").getChildEvents();
+        assertEquals(2, events.size());
+        assertSampling(events.get(0), 1.0, 3);
+        assertSampling(events.get(1), 1.5, 1);
+    }
+
+    private static void assertSampling(Event event, double time, int instances){
+        assertEquals(EventType.SAMPLE, event.getType());
+        assertEquals(time, event.getTime(), 0);
+        assertEquals(instances, event.getInstances());
+    }
+
+}
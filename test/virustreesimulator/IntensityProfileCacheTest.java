@@ -0,0 +1,102 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.DemographicFunction;
+import dr.evolution.coalescent.ExponentialGrowth;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.util.Units;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class IntensityProfileCacheTest {
+
+    @Test
+    public void cachedProfilesMatchBuiltOnes(){
+        DemographicFunction growth = growth();
+        IntensityProfileCache cache = new IntensityProfileCache(100);
+        double[] heights = {-3, -1.5, -0.25};
+
+        IntensityProfile first = cache.get(heights, 0, growth);
+        IntensityProfile built = IntensityProfile.build(heights, 0, growth);
+        assertEquals(built.getHeightCount(), first.getHeightCount());
+        for(int i=0; i<heights.length; i++){
+            assertEquals(built.getIntensity(i), first.getIntensity(i), 0);
+        }
+        assertEquals(built.getBoundIntensity(), first.getBoundIntensity(), 0);
+
+        assertSame(first, cache.get(new double[]{-3, -1.5, -0.25}, 0, growth));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedProfilesAreEvicted(){
+        DemographicFunction growth = growth();
+        // room for two profiles of two heights and their bounds
+        IntensityProfileCache cache = new IntensityProfileCache(6);
+
+        IntensityProfile a = cache.get(new double[]{-2, -1}, 0, growth);
+        cache.get(new double[]{-3, -1}, 0, growth);
+        assertSame(a, cache.get(new double[]{-2, -1}, 0, growth));
+        cache.get(new double[]{-4, -1}, 0, growth);
+
+        assertSame(a, cache.get(new double[]{-2, -1}, 0, growth));
+        cache.get(new double[]{-3, -1}, 0, growth);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void cachedRunsGiveTheSameTreesAsUncachedOnes(){
+        for(boolean forced : new boolean[]{false, true}){
+            for(long seed=1; seed<=20; seed++){
+                IntensityProfileCache cache = new IntensityProfileCache(1000);
+                assertEquals("seed " + seed, simulate(seed, forced, null), simulate(seed, forced, cache));
+                // B and C have the same shape, as do D and E
+                assertEquals(2, cache.getHitCount());
+            }
+        }
+    }
+
+    private static List<String> simulate(long seed, boolean forced, IntensityProfileCache cache){
+        TransmissionGraph graph = new TransmissionGraph();
+        graph.addIntroduction("A", 0.0);
+        graph.addInfection("A", "B", 1.0);
+        graph.addInfection("A", "C", 2.0);
+        graph.addInfection("B", "D", 1.5);
+        graph.addInfection("C", "E", 2.5);
+        graph.addSampling("A", 3.0, 3);
+        graph.addSampling("B", 4.0, 3);
+        graph.addSampling("C", 5.0, 3);
+        graph.addSampling("D", 2.5, 3);
+        graph.addSampling("E", 3.5, 3);
+
+        VirusTreeSimulator simulator = new VirusTreeSimulator(growth());
+        simulator.setMasterSeed(seed);
+        simulator.setForceCoalescence(forced);
+        simulator.setProgressStream(new PrintStream(new ByteArrayOutputStream()));
+        if(cache!=null){
+            simulator.setProfileCache(cache);
+        }
+
+        ArrayList<String> out = new ArrayList<String>();
+        for(FlexibleTree tree : simulator.simulate(graph)){
+            out.add(TestTrees.canonical(tree));
+        }
+        return out;
+    }
+
+    private static DemographicFunction growth(){
+        ExponentialGrowth growth = new ExponentialGrowth(Units.Type.YEARS);
+        growth.setN0(2.0);
+        growth.setGrowthRate(0.5);
+        return growth;
+    }
+
+}
@@ -0,0 +1,48 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.util.Units;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntroductionCostsTest {
+
+    @Test
+    public void unsampledInfecteesAreNotLineages(){
+        TransmissionGraph graph = graph();
+        IntroductionCosts costs = new IntroductionCosts(population(), false);
+
+        assertEquals(0, costs.getCladeCost(graph.getUnit("B")), 0);
+        assertEquals(2, costs.getCladeCost(graph.getUnit("C")), 0);
+        // A's two samples and the lineage from C; B gives no lineage
+        assertEquals(5, costs.getCladeCost(graph.getUnit("A")), 0);
+    }
+
+    @Test
+    public void unsampledInfecteesDoNotShortenForcedCoalescence(){
+        TransmissionGraph graph = graph();
+        IntroductionCosts costs = new IntroductionCosts(population(), true);
+
+        // the lineage nearest A's infection is C's, 2 before it, not B's at 0.5; the intensity is time over N0 = 1
+        double expected = 3/(-Math.expm1(-2.0)) + 2;
+        assertEquals(expected, costs.getCladeCost(graph.getUnit("A")), 1E-12);
+    }
+
+    private static TransmissionGraph graph(){
+        TransmissionGraph graph = new TransmissionGraph();
+        graph.addIntroduction("A", 0.0);
+        graph.addInfection("A", "B", 0.5);
+        graph.addInfection("A", "C", 2.0);
+        graph.addSampling("A", 3.0, 2);
+        graph.addSampling("C", 4.0, 2);
+        return graph;
+    }
+
+    private static ConstantPopulation population(){
+        ConstantPopulation population = new ConstantPopulation(Units.Type.YEARS);
+        population.setN0(1.0);
+        return population;
+    }
+
+}
@@ -0,0 +1,166 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class LcaIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lcaMatchesWalkingUpTheTree(){
+        for(FlexibleTree tree : new FlexibleTree[]{TestTrees.random(200, 1, true), TestTrees.caterpillar(100)}){
+            LcaIndex index = new LcaIndex(tree);
+            for(int i=0; i<tree.getNodeCount(); i++){
+                for(int j=0; j<tree.getNodeCount(); j+=7){
+                    NodeRef node1 = tree.getNode(i);
+                    NodeRef node2 = tree.getNode(j);
+                    assertSame(naiveLca(tree, node1, node2), index.getLca(node1, node2));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void inducedSubtreeMatchesPruning(){
+        Random random = new Random(1);
+        for(int round=0; round<50; round++){
+            FlexibleTree tree = TestTrees.random(2 + random.nextInt(300), round, round%2==0);
+            LcaIndex index = new LcaIndex(tree);
+            List<String> labels = TestTrees.tipLabels(tree);
+            Collections.shuffle(labels, random);
+            List<String> subset = new ArrayList<String>(labels.subList(0, 1 + random.nextInt(labels.size())));
+
+            FlexibleTree induced = index.getInducedSubtree(subset);
+            assertEquals(prune(tree, new HashSet<String>(subset)), TestTrees.canonical(induced));
+            assertEquals(subset.size(), induced.getExternalNodeCount());
+            for(int i=0; i<induced.getNodeCount(); i++){
+                NodeRef node = induced.getNode(i);
+                NodeRef parent = induced.getParent(node);
+                if(parent!=null){
+                    assertEquals(induced.getNodeHeight(parent) - induced.getNodeHeight(node),
+                            induced.getBranchLength(node), 1E-12);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keepsAttributesAndSkipsUnknownLabels(){
+        FlexibleTree tree = TestTrees.random(50, 2, true);
+        LcaIndex index = new LcaIndex(tree);
+        List<String> labels = TestTrees.tipLabels(tree);
+
+        FlexibleTree induced = index.getInducedSubtree(Arrays.asList(labels.get(3), "no such tip", labels.get(3),
+                labels.get(40)));
+        assertEquals(2, induced.getExternalNodeCount());
+        assertEquals("host_0", induced.getAttribute("firstCase"));
+        NodeRef root = induced.getRoot();
+        NodeRef original = index.getLca(index.getTip(labels.get(3)), index.getTip(labels.get(40)));
+        assertEquals(tree.getNodeAttribute(original, "Unit"), induced.getNodeAttribute(root, "Unit"));
+        assertEquals(tree.getNodeHeight(original), induced.getNodeHeight(root), 0);
+
+        FlexibleTree single = index.getInducedSubtree(Collections.singletonList(labels.get(7)));
+        assertEquals(1, single.getNodeCount());
+        assertEquals(labels.get(7), single.getNodeTaxon(single.getRoot()).getId());
+
+        assertNull(index.getInducedSubtree(Collections.singletonList("no such tip")));
+        assertNull(index.getTip("no such tip"));
+    }
+
+    @Test
+    public void detailedAndSimpleTreesGiveTheSameSubtree(){
+        FlexibleTree detailed = TestTrees.random(100, 3, true);
+        FlexibleTree simple = TreeSimplifier.makeWellBehavedTree(detailed);
+        List<String> subset = TestTrees.tipLabels(detailed).subList(10, 60);
+        assertEquals(TestTrees.canonical(new LcaIndex(detailed).getInducedSubtree(subset)),
+                TestTrees.canonical(new LcaIndex(simple).getInducedSubtree(subset)));
+    }
+
+    @Test
+    public void readsSubsets() throws IOException{
+        File file = folder.newFile("subsets.csv");
+        PrintStream out = new PrintStream(file);
+        out.println("Subset,Tip");
+        out.println("a,tip_1");
+        out.println("b,tip_2");
+        out.println("a,\"tip,3\"");
+        out.close();
+
+        LinkedHashMap<String, ArrayList<String>> subsets = LcaIndex.readSubsets(file.getPath());
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(subsets.keySet()));
+        assertEquals(Arrays.asList("tip_1", "tip,3"), subsets.get("a"));
+        assertEquals(Arrays.asList("tip_2"), subsets.get("b"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsSubsetsWithoutHeader() throws IOException{
+        File file = folder.newFile("subsets.csv");
+        PrintStream out = new PrintStream(file);
+        out.println("a,tip_1");
+        out.close();
+        LcaIndex.readSubsets(file.getPath());
+    }
+
+    private static NodeRef naiveLca(Tree tree, NodeRef node1, NodeRef node2){
+        HashSet<NodeRef> ancestors = new HashSet<NodeRef>();
+        for(NodeRef node = node1; node!=null; node = tree.getParent(node)){
+            ancestors.add(node);
+        }
+        NodeRef node = node2;
+        while(!ancestors.contains(node)){
+            node = tree.getParent(node);
+        }
+        return node;
+    }
+
+    // the canonical form of the tree cut down to these tips, with every node left with one child spliced out
+
+    private static String prune(Tree tree, HashSet<String> labels){
+        return prune(tree, tree.getRoot(), labels);
+    }
+
+    private static String prune(Tree tree, NodeRef node, HashSet<String> labels){
+        if(tree.isExternal(node)){
+            String label = tree.getNodeTaxon(node).getId();
+            return labels.contains(label) ? label + "@" + tree.getNodeHeight(node) : null;
+        }
+        ArrayList<String> children = new ArrayList<String>();
+        for(int i=0; i<tree.getChildCount(node); i++){
+            String child = prune(tree, tree.getChild(node, i), labels);
+            if(child!=null){
+                children.add(child);
+            }
+        }
+        if(children.size() < 2){
+            return children.isEmpty() ? null : children.get(0);
+        }
+        Collections.sort(children);
+        StringBuilder out = new StringBuilder("(");
+        for(int i=0; i<children.size(); i++){
+            out.append(i > 0 ? "," : "").append(children.get(i));
+        }
+        return out.append(")@").append(tree.getNodeHeight(node)).toString();
+    }
+
+}
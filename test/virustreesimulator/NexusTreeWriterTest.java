@@ -0,0 +1,90 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleTree;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NexusTreeWriterTest {
+
+    private ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void shutDown(){
+        pool.shutdown();
+    }
+
+    @Test
+    public void randomTreesAreTheSameOnSeveralThreads(){
+        for(int seed=1; seed<=5; seed++){
+            checkThreadsMakeNoDifference(TestTrees.random(300, seed, seed%2==0));
+        }
+    }
+
+    @Test
+    public void deepTreesAreTheSameOnSeveralThreads(){
+        checkThreadsMakeNoDifference(TestTrees.caterpillar(500));
+    }
+
+    @Test
+    public void tinyTreesAreTheSameOnSeveralThreads(){
+        checkThreadsMakeNoDifference(TestTrees.random(1, 1, true));
+        checkThreadsMakeNoDifference(TestTrees.random(2, 1, false));
+        checkThreadsMakeNoDifference(TestTrees.random(3, 1, true));
+    }
+
+    @Test
+    public void translateBlockNumbersTipsInOrder(){
+        FlexibleTree tree = TestTrees.random(20, 3, false);
+        ArrayList<String> labels = new ArrayList<String>();
+        String nexus = new String(NexusTreeWriter.toBytes(tree, NexusLabels.TRANSLATE, labels),
+                BinaryTreeWriter.UTF8);
+
+        assertEquals(20, labels.size());
+        assertTrue(nexus.startsWith("#NEXUS\n\nBegin trees;\n\tTranslate\n"));
+        for(int i=0; i<labels.size(); i++){
+            // the one label with a space is quoted, with its apostrophe doubled
+            String label = labels.get(i).indexOf(' ')==-1 ? labels.get(i) : "'" + labels.get(i).replace("'", "''")
+                    + "'";
+            assertTrue(nexus.contains("\t\t" + (i+1) + " " + label));
+        }
+    }
+
+    @Test
+    public void labelTableQuotesCommas(){
+        ArrayList<String> labels = new ArrayList<String>();
+        labels.add("a");
+        labels.add("b,c");
+        labels.add("say \"d\"");
+        assertEquals("Token,Label\n1,a\n2,\"b,c\"\n3,\"say \"\"d\"\"\"\n",
+                new String(NexusTreeWriter.labelTable(labels), BinaryTreeWriter.UTF8));
+    }
+
+    // every tree is split, into runs of various lengths down to a single step, and must give the same bytes and
+    // labels as on one thread
+
+    private void checkThreadsMakeNoDifference(FlexibleTree tree){
+        for(NexusLabels labels : NexusLabels.values()){
+            for(int precision : new int[]{0, 6}){
+                ArrayList<String> expectedLabels = new ArrayList<String>();
+                byte[] expected = NexusTreeWriter.toBytes(tree, labels, precision, expectedLabels, null);
+
+                for(int minRunLength : new int[]{1, 2, 7, 100}){
+                    ArrayList<String> tipLabels = new ArrayList<String>();
+                    byte[] parallel = NexusTreeWriter.toBytes(tree, labels, precision, tipLabels, pool, 1,
+                            minRunLength);
+                    String context = labels + ", precision " + precision + ", runs of at least " + minRunLength;
+                    assertArrayEquals(context, expected, parallel);
+                    assertEquals(context, expectedLabels, tipLabels);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package virustreesimulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutputFileWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesEveryFileWithinASmallByteBudget() throws IOException{
+        ByteArrayOutputStream logBytes = new ByteArrayOutputStream();
+        PrintStream log = new PrintStream(logBytes, true);
+        OutputFileWriter writer = new OutputFileWriter(4, 1000, log);
+
+        File[] files = new File[50];
+        for(int i=0; i<files.length; i++){
+            files[i] = new File(folder.getRoot(), "file" + i);
+            writer.write(files[i].getPath(), contents(i, 100 + 10*i));
+            assertTrue(writer.getQueuedBytes() <= Math.max(1000, 100 + 10*i));
+        }
+        writer.close();
+
+        assertEquals(0, writer.getQueuedBytes());
+        for(int i=0; i<files.length; i++){
+            assertArrayEquals(contents(i, 100 + 10*i), Files.readAllBytes(files[i].toPath()));
+        }
+
+        // logged in the order handed over
+        String[] lines = logBytes.toString().trim().split("\\r?\\n");
+        assertEquals(files.length, lines.length);
+        for(int i=0; i<files.length; i++){
+            assertEquals(files[i].getPath(), lines[i]);
+        }
+    }
+
+    @Test
+    public void fileLargerThanTheBudgetIsWrittenOnItsOwn() throws IOException{
+        OutputFileWriter writer = new OutputFileWriter(2, 10, null);
+        File small = new File(folder.getRoot(), "small");
+        File large = new File(folder.getRoot(), "large");
+
+        writer.write(small.getPath(), contents(1, 5));
+        writer.write(large.getPath(), contents(2, 1000));
+        writer.write(small.getPath() + "2", contents(3, 5));
+        writer.close();
+
+        assertArrayEquals(contents(2, 1000), Files.readAllBytes(large.toPath()));
+        assertArrayEquals(contents(3, 5), Files.readAllBytes(new File(small.getPath() + "2").toPath()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyBudget(){
+        new OutputFileWriter(1, 0, null);
+    }
+
+    private static byte[] contents(int seed, int length){
+        byte[] out = new byte[length];
+        Arrays.fill(out, (byte)('a' + seed % 26));
+        return out;
+    }
+
+}
@@ -0,0 +1,147 @@
+package virustreesimulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionedTransmissionGraphTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void partitionsHoldTheSameEventsAsTheGraphInMemory() throws IOException{
+        for(int seed=1; seed<=5; seed++){
+            TransmissionGraph graph = new TransmissionGraph();
+            PartitionedTransmissionGraph partitioned = new PartitionedTransmissionGraph(
+                    folder.newFolder("graph_" + seed).getPath(), 6);
+            addRandomEvents(seed, graph, partitioned);
+            assertEquals(graph.getLongestInfection(), partitioned.getLongestInfection(), 0);
+
+            partitioned.partition();
+            assertTrue(partitioned.getPartitionCount() > 1);
+
+            TreeMap<String, String> loaded = new TreeMap<String, String>();
+            for(int i=0; i<partitioned.getPartitionCount(); i++){
+                TransmissionGraph partition = partitioned.loadPartition(i);
+                assertEquals(partitioned.getUnitCount(i), partition.getUnits().size());
+                describe(partition, loaded);
+            }
+            assertEquals(describe(graph, new TreeMap<String, String>()), loaded);
+        }
+    }
+
+    @Test
+    public void shardsAreChosenOverTheWholeGraph() throws IOException{
+        int shardCount = 3;
+        for(int seed=1; seed<=5; seed++){
+            TransmissionGraph graph = new TransmissionGraph();
+            addRandomEvents(seed, graph, null);
+
+            ArrayList<InfectedUnit> sampled = new ArrayList<InfectedUnit>();
+            for(InfectedUnit introduction : graph.getIntroductions()){
+                if(introduction.getChildEvents().size()>0){
+                    sampled.add(introduction);
+                }
+            }
+            IdentityHashMap<InfectedUnit, Integer> expected = Shards.assign(sampled, shardCount);
+
+            for(int shard=1; shard<=shardCount; shard++){
+                TreeSet<String> inMemory = new TreeSet<String>();
+                for(InfectedUnit introduction : sampled){
+                    if(expected.get(introduction)==shard){
+                        inMemory.add(introduction.getId());
+                    }
+                }
+
+                // small partitions, so that a shard chosen within each one would differ
+                PartitionedTransmissionGraph partitioned = new PartitionedTransmissionGraph(
+                        folder.newFolder("shard_" + seed + "_" + shard).getPath(), 3);
+                addRandomEvents(seed, null, partitioned);
+                partitioned.partition(shard, shardCount);
+
+                TreeSet<String> outOfCore = new TreeSet<String>();
+                for(int i=0; i<partitioned.getPartitionCount(); i++){
+                    for(InfectedUnit introduction : partitioned.loadPartition(i).getIntroductions()){
+                        outOfCore.add(introduction.getId());
+                    }
+                }
+                assertEquals("seed " + seed + ", shard " + shard, inMemory, outOfCore);
+            }
+        }
+    }
+
+    // introductions and chains of infection among 60 units, then samplings; some introductions have no events
+
+    private static void addRandomEvents(int seed, TransmissionGraph graph, PartitionedTransmissionGraph partitioned){
+        Random random = new Random(seed);
+        int units = 60;
+        double[] infectionTimes = new double[units];
+        for(int i=0; i<units; i++){
+            String id = "U" + i;
+            if(i==0 || random.nextDouble() < 0.25){
+                infectionTimes[i] = 10*random.nextDouble();
+                if(graph!=null){
+                    graph.addIntroduction(id, infectionTimes[i]);
+                }
+                if(partitioned!=null){
+                    partitioned.addIntroduction(id, infectionTimes[i]);
+                }
+            } else {
+                int infector = random.nextInt(i);
+                infectionTimes[i] = infectionTimes[infector] + random.nextDouble();
+                if(graph!=null){
+                    graph.addInfection("U" + infector, id, infectionTimes[i]);
+                }
+                if(partitioned!=null){
+                    partitioned.addInfection("U" + infector, id, infectionTimes[i]);
+                }
+            }
+        }
+        for(int i=0; i<units; i++){
+            int samplings = random.nextInt(3);
+            for(int j=0; j<samplings; j++){
+                double time = infectionTimes[i] + 2*random.nextDouble();
+                int instances = 1 + random.nextInt(3);
+                if(graph!=null){
+                    graph.addSampling("U" + i, time, instances);
+                }
+                if(partitioned!=null){
+                    partitioned.addSampling("U" + i, time, instances);
+                }
+            }
+        }
+    }
+
+    // each unit's infector, infection time and events, by id
+
+    private static TreeMap<String, String> describe(TransmissionGraph graph, TreeMap<String, String> out){
+        for(InfectedUnit unit : graph.getUnits()){
+            List<String> events = new ArrayList<String>();
+            for(Event event : unit.getChildEvents()){
+                if(event.getType() == EventType.SAMPLE){
+                    events.add("sample " + event.getTime() + "x" + event.getInstances());
+                } else {
+                    events.add("infection " + event.getTime() + " of " + event.getInfectee().getId());
+                }
+            }
+            Collections.sort(events);
+            String infector = unit.getParent()==null ? "none" : unit.getParent().getId();
+            out.put(unit.getId(), infector + " " + unit.getInfectionEvent().getTime() + " " + events);
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,59 @@
+package virustreesimulator;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SeedsTest {
+
+    private static final long PINNED_A = -2717255585811763920L;
+    private static final long PINNED_HOST = -5560820779643554801L;
+
+    // reruns of single hosts depend on these values never changing
+    @Test
+    public void derivedSeedsAreStable(){
+        assertEquals(Seeds.derive(1, "A"), Seeds.derive(1, "A"));
+        assertEquals(PINNED_A, Seeds.derive(1, "A"));
+        assertEquals(PINNED_HOST, Seeds.derive(-42, "host_12345"));
+    }
+
+    @Test
+    public void masterSeedAndLabelBothMatter(){
+        assertNotEquals(Seeds.derive(1, "A"), Seeds.derive(2, "A"));
+        assertNotEquals(Seeds.derive(1, "A"), Seeds.derive(1, "B"));
+        assertNotEquals(Seeds.derive(1, "AB"), Seeds.derive(1, "BA"));
+        assertNotEquals(Seeds.derive(0, ""), Seeds.derive(0, "\u0000"));
+    }
+
+    @Test
+    public void hostsGetDistinctSeeds(){
+        HashSet<Long> seeds = new HashSet<Long>();
+        for(int i=0; i<100000; i++){
+            seeds.add(Seeds.derive(7, "host_" + i));
+        }
+        assertEquals(100000, seeds.size());
+    }
+
+    @Test
+    public void seedBitsAreBalanced(){
+        // every bit of the derived seeds of consecutive ids is set about half the time
+        int count = 20000;
+        int[] setBits = new int[64];
+        for(int i=0; i<count; i++){
+            long seed = Seeds.derive(0, Integer.toString(i));
+            for(int bit=0; bit<64; bit++){
+                if((seed >>> bit & 1)==1){
+                    setBits[bit]++;
+                }
+            }
+        }
+        for(int bit=0; bit<64; bit++){
+            assertTrue("bit " + bit, Math.abs(setBits[bit] - count/2) < 4*Math.sqrt(count/4.0));
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package virustreesimulator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardsTest {
+
+    @Test
+    public void parsesShards(){
+        assertArrayEquals(new int[]{2, 5}, Shards.parse("2/5"));
+        assertArrayEquals(new int[]{1, 1}, Shards.parse(" 1 / 1 "));
+    }
+
+    @Test
+    public void rejectsMalformedShards(){
+        for(String shard : new String[]{"0/3", "4/3", "1/0", "-1/2", "a/b", "1/2/3", "3", "", "/"}){
+            try {
+                Shards.parse(shard);
+                fail(shard + " was accepted");
+            } catch (RuntimeException e){
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void countsSamplesOfWholeClades(){
+        TransmissionGraph graph = makeGraph(new int[]{3});
+        graph.addInfection("I0", "I0_child", 1);
+        graph.addInfection("I0_child", "I0_grandchild", 2);
+        graph.addSampling("I0_child", 3, 2);
+        graph.addSampling("I0_grandchild", 3, 4);
+        assertEquals(9, Shards.getSampleCount(graph.getUnit("I0")));
+        assertEquals(6, Shards.getSampleCount(graph.getUnit("I0_child")));
+    }
+
+    @Test
+    public void assignsEveryIntroductionToOneShard(){
+        TransmissionGraph graph = makeGraph(new int[]{5, 1, 8, 2, 2, 7, 3, 1, 1, 9, 4, 6});
+        IdentityHashMap<InfectedUnit, Integer> shards = Shards.assign(graph.getIntroductions(), 3);
+        assertEquals(12, shards.size());
+        long[] load = new long[3];
+        for(InfectedUnit introduction : graph.getIntroductions()){
+            int shard = shards.get(introduction);
+            assertTrue(shard >= 1 && shard <= 3);
+            load[shard-1] += Shards.getSampleCount(introduction);
+        }
+        // largest first onto the lightest shard leaves no shard more than the largest introduction behind
+        long lightest = Math.min(load[0], Math.min(load[1], load[2]));
+        long heaviest = Math.max(load[0], Math.max(load[1], load[2]));
+        assertTrue(heaviest - lightest <= 9);
+    }
+
+    @Test
+    public void assignmentDoesNotDependOnOrder(){
+        // equal weights, so only the ids break the ties
+        TransmissionGraph graph = makeGraph(new int[]{2, 2, 2, 2, 2, 2, 2, 1, 1, 1});
+        IdentityHashMap<InfectedUnit, Integer> expected = Shards.assign(graph.getIntroductions(), 4);
+
+        Random random = new Random(1);
+        for(int i=0; i<20; i++){
+            List<InfectedUnit> shuffled = new ArrayList<InfectedUnit>(graph.getIntroductions());
+            Collections.shuffle(shuffled, random);
+            assertEquals(expected, Shards.assign(shuffled, 4));
+        }
+    }
+
+    @Test
+    public void moreShardsThanIntroductionsLeavesSomeEmpty(){
+        TransmissionGraph graph = makeGraph(new int[]{1, 1});
+        IdentityHashMap<InfectedUnit, Integer> shards = Shards.assign(graph.getIntroductions(), 5);
+        assertEquals(2, shards.size());
+        assertTrue(!shards.get(graph.getUnit("I0")).equals(shards.get(graph.getUnit("I1"))));
+    }
+
+    // introductions I0, I1... sampled this many times each
+
+    private static TransmissionGraph makeGraph(int[] samples){
+        TransmissionGraph graph = new TransmissionGraph();
+        for(int i=0; i<samples.length; i++){
+            graph.addIntroduction("I" + i, 0);
+            graph.addSampling("I" + i, 1, samples[i]);
+        }
+        return graph;
+    }
+
+}
@@ -0,0 +1,119 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class SimulateHostsTest {
+
+    private static final List<String> QUERY = Arrays.asList("B", "F");
+
+    @Test
+    public void forcedQueryIsTheFullTreePrunedToTheHosts(){
+        for(long seed=1; seed<=20; seed++){
+            List<FlexibleTree> full = simulator(seed).simulate(graph());
+            List<FlexibleTree> queried = simulator(seed).simulateHosts(graph(), QUERY);
+            assertEquals(1, full.size());
+            assertEquals(1, queried.size());
+
+            TreeSet<String> expectedTips = new TreeSet<String>();
+            for(String label : TestTrees.tipLabels(full.get(0))){
+                if(label.startsWith("B_") || label.startsWith("F_")){
+                    expectedTips.add(label);
+                }
+            }
+            // everything else, including the stand-ins for C and E, is pruned away
+            assertEquals(new TreeSet<String>(Arrays.asList("B_sampled_1_3.5", "B_sampled_2_3.5",
+                    "F_sampled_1_4.4", "F_sampled_2_4.4")), expectedTips);
+            assertEquals(expectedTips, new TreeSet<String>(TestTrees.tipLabels(queried.get(0))));
+
+            assertSameShape("seed " + seed, full.get(0), queried.get(0), new ArrayList<String>(expectedTips));
+        }
+    }
+
+    @Test
+    public void unforcedQueryKeepsOnlyTheHostsSamples(){
+        for(long seed=1; seed<=20; seed++){
+            VirusTreeSimulator simulator = simulator(seed);
+            simulator.setForceCoalescence(false);
+            TreeSet<String> tips = new TreeSet<String>();
+            for(FlexibleTree tree : simulator.simulateHosts(graph(), QUERY)){
+                tips.addAll(TestTrees.tipLabels(tree));
+            }
+            assertEquals(new TreeSet<String>(Arrays.asList("B_sampled_1_3.5", "B_sampled_2_3.5",
+                    "F_sampled_1_4.4", "F_sampled_2_4.4")), tips);
+        }
+    }
+
+    // B and F are queried, so A and D are on their paths and the clades of C and E, off the paths, are stood in for
+
+    private static TransmissionGraph graph(){
+        TransmissionGraph graph = new TransmissionGraph();
+        graph.addIntroduction("A", 0.0);
+        graph.addInfection("A", "B", 1.0);
+        graph.addInfection("A", "D", 1.2);
+        graph.addInfection("B", "C", 2.0);
+        graph.addInfection("B", "E", 2.3);
+        graph.addInfection("D", "F", 2.5);
+        graph.addSampling("A", 3.0, 2);
+        graph.addSampling("B", 3.5, 2);
+        graph.addSampling("C", 4.0, 2);
+        graph.addSampling("D", 3.8, 2);
+        graph.addSampling("E", 4.2, 1);
+        graph.addSampling("F", 4.4, 2);
+        return graph;
+    }
+
+    private static VirusTreeSimulator simulator(long seed){
+        ConstantPopulation population = new ConstantPopulation(Units.Type.YEARS);
+        population.setN0(1.0);
+        VirusTreeSimulator simulator = new VirusTreeSimulator(population);
+        simulator.setMasterSeed(seed);
+        simulator.setForceCoalescence(true);
+        simulator.setDetailedTrees(false);
+        simulator.setProgressStream(new PrintStream(new ByteArrayOutputStream()));
+        return simulator;
+    }
+
+    // for every pair of tips, the distance from the first up to their common ancestor, which fixes the rooted shape
+    // and branch lengths of the tree joining them however it is pruned
+
+    private static void assertSameShape(String context, Tree full, Tree pruned, List<String> tips){
+        LcaIndex fullIndex = new LcaIndex(full);
+        LcaIndex prunedIndex = new LcaIndex(pruned);
+        for(String first : tips){
+            for(String second : tips){
+                NodeRef fullFirst = fullIndex.getTip(first);
+                NodeRef prunedFirst = prunedIndex.getTip(first);
+                assertNotNull(prunedFirst);
+                assertEquals(context + ", " + first + " up to its ancestor with " + second,
+                        distanceAbove(full, fullFirst, fullIndex.getLca(fullFirst, fullIndex.getTip(second))),
+                        distanceAbove(pruned, prunedFirst, prunedIndex.getLca(prunedFirst,
+                                prunedIndex.getTip(second))), 1E-9);
+            }
+        }
+    }
+
+    private static double distanceAbove(Tree tree, NodeRef node, NodeRef ancestor){
+        double out = 0;
+        while(node!=ancestor){
+            out += tree.getBranchLength(node);
+            node = tree.getParent(node);
+        }
+        return out;
+    }
+
+}
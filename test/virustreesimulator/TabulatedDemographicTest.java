@@ -0,0 +1,78 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.ExponentialGrowth;
+import dr.evolution.util.Units;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TabulatedDemographicTest {
+
+    private static final double TOLERANCE = 1E-8;
+
+    @Test
+    public void intensityIsWithinTheToleranceAcrossTheRange(){
+        ExponentialGrowth exact = growth();
+        TabulatedDemographic table = new TabulatedDemographic(exact, -10, 0, 16, TOLERANCE);
+        assertTrue(table.getLargestErrorFound() <= TOLERANCE);
+
+        Random random = new Random(1);
+        for(int i=0; i<100000; i++){
+            double t = -10*random.nextDouble();
+            double exactValue = exact.getIntensity(t);
+            double scale = Math.max(1, Math.abs(exactValue));
+            assertEquals(exactValue, table.getIntensity(t), TOLERANCE*scale);
+            assertEquals(exactValue, exact.getIntensity(table.getInverseIntensity(exactValue)), TOLERANCE*scale);
+        }
+    }
+
+    @Test
+    public void inverseUndoesTheTable(){
+        TabulatedDemographic table = new TabulatedDemographic(growth(), -10, 0, 64, TOLERANCE);
+        Random random = new Random(2);
+        for(int i=0; i<100000; i++){
+            double x = table.getIntensity(-10*random.nextDouble());
+            assertEquals(x, table.getIntensity(table.getInverseIntensity(x)), 1E-14*Math.max(1, Math.abs(x)));
+        }
+        // grid points exactly
+        assertEquals(-10, table.getInverseIntensity(table.getIntensity(-10)), 0);
+        assertEquals(0, table.getInverseIntensity(table.getIntensity(0)), 0);
+    }
+
+    @Test
+    public void usesTheExactFunctionOutsideTheRange(){
+        ExponentialGrowth exact = growth();
+        TabulatedDemographic table = new TabulatedDemographic(exact, -10, 0, 16, TOLERANCE);
+        assertEquals(exact.getIntensity(-12), table.getIntensity(-12), 0);
+        assertEquals(exact.getIntensity(3), table.getIntensity(3), 0);
+        double beyond = exact.getIntensity(-11);
+        assertEquals(exact.getInverseIntensity(beyond), table.getInverseIntensity(beyond), 0);
+    }
+
+    @Test
+    public void hasNoParametersToChange(){
+        TabulatedDemographic table = new TabulatedDemographic(growth(), -10, 0, 16, TOLERANCE);
+        assertEquals(0, table.getNumArguments());
+        try {
+            table.setArgument(0, 2.0);
+            fail();
+        } catch (IndexOutOfBoundsException e){
+            // expected
+        }
+        assertEquals(2, table.getExact().getNumArguments());
+        assertEquals(-10, table.getStart(), 0);
+        assertEquals(0, table.getEnd(), 0);
+    }
+
+    private static ExponentialGrowth growth(){
+        ExponentialGrowth growth = new ExponentialGrowth(Units.Type.YEARS);
+        growth.setN0(0.5);
+        growth.setGrowthRate(0.8);
+        return growth;
+    }
+
+}
@@ -0,0 +1,147 @@
+package virustreesimulator;
+
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.math.MersenneTwisterFast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Trees for the tests, built from nodes with known heights, and a canonical form of a tree for comparing two trees
+ * regardless of the order of children.
+ */
+
+class TestTrees {
+
+    private TestTrees(){
+    }
+
+    /**
+     * A random tree joining random pairs of lineages at increasing heights. With transmissions, every third join is
+     * followed by a node with one child, as at a transmission in a detailed tree, and nodes carry a "Unit". One tip
+     * label needs quoting in Nexus.
+     */
+
+    static FlexibleTree random(int tipCount, long seed, boolean transmissions){
+        MersenneTwisterFast random = new MersenneTwisterFast(seed);
+
+        ArrayList<FlexibleNode> lineages = new ArrayList<FlexibleNode>();
+        for(int i=0; i<tipCount; i++){
+            String label = i==0 ? "host 0's sample" : "host_" + i + "_sampled_1_" + (100 - 10*random.nextDouble());
+            FlexibleNode tip = new FlexibleNode(new Taxon(label));
+            tip.setHeight(random.nextDouble());
+            if(transmissions){
+                tip.setAttribute("Unit", "host_" + random.nextInt(10));
+            }
+            lineages.add(tip);
+        }
+
+        double height = 1;
+        int joins = 0;
+        while(lineages.size() > 1){
+            FlexibleNode first = lineages.remove(random.nextInt(lineages.size()));
+            FlexibleNode second = lineages.remove(random.nextInt(lineages.size()));
+            height += random.nextDouble()/lineages.size();
+
+            FlexibleNode parent = new FlexibleNode();
+            parent.setHeight(height);
+            parent.addChild(first);
+            parent.addChild(second);
+
+            if(transmissions){
+                parent.setAttribute("Unit", "host_" + random.nextInt(10));
+                if(++joins%3==0){
+                    height += random.nextDouble()/lineages.size();
+                    FlexibleNode transmission = new FlexibleNode();
+                    transmission.setHeight(height);
+                    transmission.setAttribute("Unit", "host_" + random.nextInt(10));
+                    transmission.addChild(parent);
+                    parent = transmission;
+                }
+            }
+
+            lineages.add(parent);
+        }
+
+        return makeTree(lineages.get(0));
+    }
+
+    // each internal node joins the previous one to a new tip, so the tree is as deep as it can be
+
+    static FlexibleTree caterpillar(int tipCount){
+        FlexibleNode node = new FlexibleNode(new Taxon("tip_0"));
+        for(int i=1; i<tipCount; i++){
+            FlexibleNode parent = new FlexibleNode();
+            parent.setHeight(i);
+            parent.addChild(node);
+            FlexibleNode tip = new FlexibleNode(new Taxon("tip_" + i));
+            tip.setHeight(i - 0.5);
+            parent.addChild(tip);
+            node = parent;
+        }
+        return makeTree(node);
+    }
+
+    static FlexibleTree makeTree(FlexibleNode root){
+        FlexibleTree tree = new FlexibleTree(root, true, false);
+        tree.setAttribute("firstCase", "host_0");
+        return tree;
+    }
+
+    // the tip labels of the tree, in the order the tree lists its tips
+
+    static ArrayList<String> tipLabels(Tree tree){
+        ArrayList<String> out = new ArrayList<String>();
+        for(int i=0; i<tree.getExternalNodeCount(); i++){
+            out.add(tree.getNodeTaxon(tree.getExternalNode(i)).getId());
+        }
+        return out;
+    }
+
+    // tips by label and internal nodes by their children, each with its height; children are sorted, so trees
+    // with the same shape and heights have the same form
+
+    static String canonical(Tree tree){
+        // post-order without recursion, as caterpillars are deep
+        HashMap<NodeRef, String> forms = new HashMap<NodeRef, String>();
+        ArrayDeque<NodeRef> stack = new ArrayDeque<NodeRef>();
+        stack.push(tree.getRoot());
+        while(!stack.isEmpty()){
+            NodeRef node = stack.peek();
+            int childCount = tree.getChildCount(node);
+            if(childCount > 0 && !forms.containsKey(tree.getChild(node, 0))){
+                for(int i=0; i<childCount; i++){
+                    stack.push(tree.getChild(node, i));
+                }
+                continue;
+            }
+            stack.pop();
+
+            if(childCount==0){
+                forms.put(node, tree.getNodeTaxon(node).getId() + "@" + tree.getNodeHeight(node));
+                continue;
+            }
+            ArrayList<String> children = new ArrayList<String>();
+            for(int i=0; i<childCount; i++){
+                children.add(forms.remove(tree.getChild(node, i)));
+            }
+            Collections.sort(children);
+            StringBuilder form = new StringBuilder("(");
+            for(int i=0; i<children.size(); i++){
+                if(i > 0){
+                    form.append(',');
+                }
+                form.append(children.get(i));
+            }
+            forms.put(node, form.append(")@").append(tree.getNodeHeight(node)).toString());
+        }
+        return forms.get(tree.getRoot());
+    }
+
+}
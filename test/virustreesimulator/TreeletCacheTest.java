@@ -0,0 +1,157 @@
+package virustreesimulator;
+
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TreeletCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entriesSurviveSavingAndLoading() throws IOException{
+        String fileName = new File(folder.getRoot(), "cache").getPath();
+        byte[] signature = TreeletCache.digest("host A's events");
+
+        ArrayList<Taxon> taxa = new ArrayList<Taxon>();
+        FlexibleNode[] tips = new FlexibleNode[3];
+        for(int i=0; i<3; i++){
+            taxa.add(new Taxon("tip_" + i));
+            tips[i] = new FlexibleNode(taxa.get(i));
+            tips[i].setHeight(-i);
+        }
+        FlexibleNode join = new FlexibleNode();
+        join.setHeight(0.5);
+        join.addChild(tips[0]);
+        join.addChild(tips[1]);
+        List<FlexibleNode> roots = Arrays.asList(join, tips[2]);
+
+        TreeletCache first = new TreeletCache(fileName);
+        assertNull(first.get("A", signature));
+        first.put("A", TreeletCache.Entry.fromTreelet(signature, roots, taxa));
+        first.save();
+
+        TreeletCache second = new TreeletCache(fileName);
+        assertNull(second.get("A", TreeletCache.digest("host A's changed events")));
+        assertNull(second.get("B", signature));
+        TreeletCache.Entry entry = second.get("A", signature);
+        assertNotNull(entry);
+        assertEquals(1, second.getHitCount());
+        assertEquals(2, second.getMissCount());
+
+        FlexibleNode[] newTips = new FlexibleNode[3];
+        for(int i=0; i<3; i++){
+            newTips[i] = new FlexibleNode(taxa.get(i));
+        }
+        ArrayList<FlexibleNode> restored = entry.toTreelet(newTips);
+        assertEquals(2, restored.size());
+        assertEquals(0.5, restored.get(0).getHeight(), 0);
+        assertEquals(2, restored.get(0).getChildCount());
+        assertSame(newTips[0], restored.get(0).getChild(0));
+        assertSame(newTips[1], restored.get(0).getChild(1));
+        assertEquals(0.5, newTips[0].getLength(), 0);
+        assertEquals(1.5, newTips[1].getLength(), 0);
+        assertSame(newTips[2], restored.get(1));
+        assertEquals(-2, newTips[2].getHeight(), 0);
+    }
+
+    @Test
+    public void savingKeepsOnlyTheEntriesUsedInTheRun() throws IOException{
+        String fileName = new File(folder.getRoot(), "cache").getPath();
+        byte[] signature = TreeletCache.digest("events");
+        ArrayList<Taxon> taxa = new ArrayList<Taxon>();
+        taxa.add(new Taxon("tip"));
+        List<FlexibleNode> roots = Arrays.asList(new FlexibleNode(taxa.get(0)));
+
+        TreeletCache first = new TreeletCache(fileName);
+        first.put("A", TreeletCache.Entry.fromTreelet(signature, roots, taxa));
+        first.put("B", TreeletCache.Entry.fromTreelet(signature, roots, taxa));
+        first.save();
+
+        TreeletCache second = new TreeletCache(fileName);
+        assertNotNull(second.get("A", signature));
+        second.save();
+
+        TreeletCache third = new TreeletCache(fileName);
+        assertNotNull(third.get("A", signature));
+        assertNull(third.get("B", signature));
+    }
+
+    @Test
+    public void cachedRunsGiveTheSameTreesAsUncachedOnes() throws IOException{
+        String fileName = new File(folder.getRoot(), "cache").getPath();
+
+        // the same events in two orders
+        List<String> uncached = simulate(true, null);
+        List<String> cold = simulate(false, new TreeletCache(fileName));
+        TreeletCache warmCache = new TreeletCache(fileName);
+        List<String> warm = simulate(true, warmCache);
+
+        assertEquals(uncached, cold);
+        assertEquals(uncached, warm);
+        assertEquals(0, warmCache.getMissCount());
+        assertEquals(4, warmCache.getHitCount());
+    }
+
+    private static List<String> simulate(boolean reversed, TreeletCache cache) throws IOException{
+        TransmissionGraph graph = new TransmissionGraph();
+        graph.addIntroduction("A", 0.0);
+        graph.addInfection("A", "B", 1.5);
+        // B infects C and D and is sampled at the same time, so only a canonical order fixes its tips' order
+        if(reversed){
+            graph.addInfection("B", "D", 2.2);
+            graph.addInfection("B", "C", 2.2);
+            graph.addSampling("D", 4.5, 2);
+            graph.addSampling("C", 4.0, 2);
+            graph.addSampling("B", 2.2, 1);
+            graph.addSampling("B", 2.5, 2);
+            graph.addSampling("A", 3.0, 2);
+        } else {
+            graph.addInfection("B", "C", 2.2);
+            graph.addInfection("B", "D", 2.2);
+            graph.addSampling("A", 3.0, 2);
+            graph.addSampling("B", 2.5, 2);
+            graph.addSampling("B", 2.2, 1);
+            graph.addSampling("C", 4.0, 2);
+            graph.addSampling("D", 4.5, 2);
+        }
+
+        ConstantPopulation population = new ConstantPopulation(Units.Type.YEARS);
+        population.setN0(1.0);
+        VirusTreeSimulator simulator = new VirusTreeSimulator(population);
+        simulator.setMasterSeed(17);
+        simulator.setProgressStream(new PrintStream(new ByteArrayOutputStream()));
+        if(cache!=null){
+            simulator.setTreeletCache(cache);
+        }
+
+        ArrayList<String> out = new ArrayList<String>();
+        for(FlexibleTree tree : simulator.simulate(graph)){
+            out.add(TestTrees.canonical(tree));
+        }
+        if(cache!=null){
+            cache.save();
+        }
+        return out;
+    }
+
+}